@@ -0,0 +1,154 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricType;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.lib.Interns;
+
+/**
+ * Synthetic Metrics2 records shaped like those published by NameNode, DataNode
+ * and TaskTracker daemons. Counters grow every period; per-task records carry a
+ * new taskId every period, like the shuffle metrics of short-lived tasks.
+ * Gauges take random values, or in a steady cluster keep theirs, with only one
+ * counter in four still growing.
+ */
+final class BenchmarkRecords {
+
+	static final String kHostname = "worker042.example.com";
+
+	// Prefix "+" marks a counter, anything else is a gauge
+	private static final String[] kJvmMetrics = {
+		"memNonHeapUsedM", "memNonHeapCommittedM", "memHeapUsedM", "memHeapCommittedM",
+		"+gcCount", "+gcTimeMillis", "threadsNew", "threadsRunnable", "threadsBlocked",
+		"threadsWaiting", "threadsTimedWaiting", "threadsTerminated",
+		"+logFatal", "+logError", "+logWarn", "+logInfo"
+	};
+	private static final String[] kRpcMetrics = {
+		"+ReceivedBytes", "+SentBytes", "+RpcQueueTime_num_ops", "RpcQueueTime_avg_time",
+		"+RpcProcessingTime_num_ops", "RpcProcessingTime_avg_time", "+rpcAuthenticationFailures",
+		"+rpcAuthenticationSuccesses", "+rpcAuthorizationFailures", "+rpcAuthorizationSuccesses",
+		"NumOpenConnections", "callQueueLen"
+	};
+	private static final String[] kNameNodeMetrics = {
+		"+CreateFileOps", "+FilesCreated", "+FilesAppended", "+GetBlockLocations", "+FilesRenamed",
+		"+GetListingOps", "+DeleteFileOps", "+FilesDeleted", "+FileInfoOps", "+AddBlockOps",
+		"+Transactions_num_ops", "Transactions_avg_time", "+Syncs_num_ops", "Syncs_avg_time",
+		"+JournalTransactionsBatchedInSync", "+blockReport_num_ops", "blockReport_avg_time",
+		"SafemodeTime", "FsImageLoadTime"
+	};
+	private static final String[] kFSNamesystemMetrics = {
+		"CapacityTotalGB", "CapacityUsedGB", "CapacityRemainingGB", "TotalLoad", "BlocksTotal",
+		"FilesTotal", "PendingReplicationBlocks", "UnderReplicatedBlocks", "CorruptBlocks",
+		"ScheduledReplicationBlocks", "PendingDeletionBlocks", "ExcessBlocks", "BlockCapacity",
+		"MissingBlocks"
+	};
+	private static final String[] kDataNodeMetrics = {
+		"+bytes_written", "+bytes_read", "+blocks_written", "+blocks_read", "+blocks_replicated",
+		"+blocks_removed", "+blocks_verified", "+block_verification_failures",
+		"+blocks_get_local_pathinfo", "+reads_from_local_client", "+reads_from_remote_client",
+		"+writes_from_local_client", "+writes_from_remote_client", "+readBlockOp_num_ops",
+		"readBlockOp_avg_time", "+writeBlockOp_num_ops", "writeBlockOp_avg_time",
+		"+blockChecksumOp_num_ops", "blockChecksumOp_avg_time", "+copyBlockOp_num_ops",
+		"copyBlockOp_avg_time", "+replaceBlockOp_num_ops", "replaceBlockOp_avg_time",
+		"+heartBeats_num_ops", "heartBeats_avg_time", "+blockReports_num_ops", "blockReports_avg_time"
+	};
+	private static final String[] kTaskTrackerMetrics = {
+		"maps_running", "reduces_running", "mapTaskSlots", "reduceTaskSlots",
+		"+tasks_completed", "+tasks_failed_timeout", "+tasks_failed_ping"
+	};
+	private static final String[] kShuffleOutputMetrics = {
+		"shuffle_handler_busy_percent", "+shuffle_output_bytes", "+shuffle_failed_outputs",
+		"+shuffle_success_outputs", "+shuffle_exceptions_caught"
+	};
+	private static final String[] kShuffleInputMetrics = {
+		"+shuffle_input_bytes", "+shuffle_failed_fetches", "+shuffle_success_fetches",
+		"shuffle_fetchers_busy_percent"
+	};
+
+	private BenchmarkRecords() {}
+
+	static SubsetConfiguration configuration(String proctype) {
+		BaseConfiguration conf = new BaseConfiguration();
+		conf.setProperty("newrelic.proctype", proctype);
+		conf.setProperty("newrelic.nrlicensekey", "0000000000000000000000000000000000000000");
+		conf.setProperty("newrelic.hostname", kHostname);
+		return new SubsetConfiguration(conf, "newrelic", ".");
+	}
+
+	/**
+	 * Builds the records published during a number of consecutive periods.
+	 * @param tasks number of per-task records in each TaskTracker period
+	 */
+	static MetricsRecord[][] periods(String profile, int periods, int tasks) {
+		return periods(profile, periods, tasks, false);
+	}
+
+	static MetricsRecord[][] periods(String profile, int periods, int tasks, boolean steady) {
+		Random random = new Random(42);
+		MetricsRecord[][] result = new MetricsRecord[periods][];
+		long timestamp = 1381000000000L;
+		for (int period = 0; period < periods; period++) {
+			List<MetricsRecord> records = new ArrayList<MetricsRecord>();
+			timestamp += NewRelicMetrics.kMetricInterval * 1000L;
+			String processName;
+			if ("namenode".equals(profile)) {
+				processName = "NameNode";
+				records.add(record(timestamp, "dfs", "namenode", processName, kNameNodeMetrics, period, random, steady));
+				records.add(record(timestamp, "dfs", "FSNamesystem", processName, kFSNamesystemMetrics, period, random, steady));
+			} else if ("datanode".equals(profile)) {
+				processName = "DataNode";
+				records.add(record(timestamp, "dfs", "datanode", processName, kDataNodeMetrics, period, random, steady));
+			} else if ("tasktracker".equals(profile)) {
+				processName = "TaskTracker";
+				records.add(record(timestamp, "mapred", "tasktracker", processName, kTaskTrackerMetrics, period, random, steady));
+				records.add(record(timestamp, "mapred", "shuffleOutput", processName, kShuffleOutputMetrics, period, random, steady));
+				for (int task = 0; task < tasks; task++) {
+					String taskId = String.format("attempt_201310010000_%04d_r_%06d_0", period / 4, period * tasks + task);
+					records.add(new TestRecords.Record(timestamp, "mapred", "shuffleInput",
+							Arrays.asList(Interns.tag("user", "", "hadoop"),
+									Interns.tag("jobName", "", "wordcount"),
+									Interns.tag("jobId", "", "job_201310010000_" + (period / 4)),
+									Interns.tag("taskId", "", taskId),
+									Interns.tag("sessionId", "", "")),
+							metrics(kShuffleInputMetrics, 1, random, steady)));
+				}
+			} else
+				throw new IllegalArgumentException("Unknown profile " + profile);
+			records.add(record(timestamp, "jvm", "JvmMetrics", processName, kJvmMetrics, period, random, steady));
+			records.add(record(timestamp, "rpc", "rpc", processName, kRpcMetrics, period, random, steady));
+			result[period] = records.toArray(new MetricsRecord[records.size()]);
+		}
+		return result;
+	}
+
+	private static MetricsRecord record(long timestamp, String context, String name, String processName,
+			String[] metricNames, int period, Random random, boolean steady) {
+		return new TestRecords.Record(timestamp, context, name,
+				Arrays.asList(Interns.tag("Context", "Metrics context", context),
+						Interns.tag("ProcessName", "Process name", processName),
+						Interns.tag("SessionId", "Session ID", null),
+						Interns.tag("Hostname", "Local hostname", kHostname)),
+				metrics(metricNames, period + 1, random, steady));
+	}
+
+	private static List<AbstractMetric> metrics(String[] metricNames, int period, Random random, boolean steady) {
+		List<AbstractMetric> metrics = new ArrayList<AbstractMetric>(metricNames.length);
+		for (int i = 0; i < metricNames.length; i++) {
+			String metricName = metricNames[i];
+			if (metricName.startsWith("+"))
+				metrics.add(new TestRecords.Metric(metricName.substring(1), MetricType.COUNTER,
+						(steady && (i % 4 != 0)) ? 1000 : (long) period * 1000 + random.nextInt(1000)));
+			else
+				metrics.add(new TestRecords.Metric(metricName, MetricType.GAUGE,
+						steady ? (metricName.hashCode() & 0x1FFF) : random.nextInt(10000)));
+		}
+		return metrics;
+	}
+}
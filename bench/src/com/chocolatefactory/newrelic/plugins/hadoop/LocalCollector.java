@@ -0,0 +1,217 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the New Relic collector on localhost. Every payload is parsed
+ * and checked against the plugin API format; invalid payloads get a 400.
+ * The collector can be switched "down", in which case it answers 503, and can
+ * delay its responses to stand in for a collector across a WAN.
+ * The metrics last received for each component, and the sum of all values
+ * received for each of its metrics (the total of a timeslice), are kept for
+ * inspection.
+ */
+class LocalCollector implements HttpHandler {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong payloads = new AtomicLong();
+	private final AtomicLong metrics = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final Map<String, Map<String, Object>> lastMetrics = new ConcurrentHashMap<String, Map<String, Object>>();
+	// Guarded by itself
+	private final Map<String, Map<String, Double>> totals = new HashMap<String, Map<String, Double>>();
+	private volatile boolean available = true;
+	private volatile long latencyMillis;
+	private volatile String lastError;
+
+	LocalCollector(int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.createContext("/platform/v1/metrics", this);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	String uri() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/platform/v1/metrics";
+	}
+
+	void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	long payloads() { return payloads.get(); }
+	long metrics() { return metrics.get(); }
+	long bytes() { return bytes.get(); }
+	long invalid() { return invalid.get(); }
+	long rejected() { return rejected.get(); }
+	String lastError() { return lastError; }
+
+	Map<String, Object> componentMetrics(String name) {
+		return lastMetrics.get(name);
+	}
+
+	/**
+	 * @return a copy of the sums of the values received for the component's metrics, empty if none were
+	 */
+	Map<String, Double> componentTotals(String name) {
+		synchronized (totals) {
+			Map<String, Double> componentTotals = totals.get(name);
+			return (componentTotals != null) ? new HashMap<String, Double>(componentTotals)
+					: new HashMap<String, Double>();
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = readFully(exchange.getRequestBody());
+			bytes.addAndGet(body.length);
+			if (latencyMillis > 0) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (!available) {
+				rejected.incrementAndGet();
+				respond(exchange, 503, "{\"error\":\"unavailable\"}");
+				return;
+			}
+			String error = validate(exchange, body);
+			if (error != null) {
+				invalid.incrementAndGet();
+				lastError = error;
+				respond(exchange, 400, "{\"error\":\"" + error.replace('"', '\'') + "\"}");
+			} else {
+				payloads.incrementAndGet();
+				respond(exchange, 200, "{\"status\":\"ok\"}");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private String validate(HttpExchange exchange, byte[] body) {
+		if (exchange.getRequestHeaders().getFirst("X-License-Key") == null)
+			return "missing X-License-Key";
+		try {
+			InputStream in = new java.io.ByteArrayInputStream(body);
+			if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+				in = new GZIPInputStream(in);
+			Object parsed = new JSONParser().parse(new InputStreamReader(in, "UTF-8"));
+			if (!(parsed instanceof Map))
+				return "payload is not an object";
+			Map<String, Object> payload = (Map<String, Object>) parsed;
+			Map<String, Object> agent = (Map<String, Object>) payload.get("agent");
+			if ((agent == null) || !(agent.get("host") instanceof String) || !(agent.get("version") instanceof String))
+				return "bad agent";
+			List<Object> components = (List<Object>) payload.get("components");
+			if ((components == null) || components.isEmpty())
+				return "no components";
+			long count = 0;
+			for (Object c : components) {
+				Map<String, Object> component = (Map<String, Object>) c;
+				if (!(component.get("name") instanceof String) || !(component.get("guid") instanceof String)
+						|| !(component.get("duration") instanceof Number))
+					return "bad component";
+				Map<String, Object> componentMetrics = (Map<String, Object>) component.get("metrics");
+				if (componentMetrics == null)
+					return "no metrics";
+				for (Map.Entry<String, Object> metric : componentMetrics.entrySet()) {
+					if (!metric.getKey().startsWith("Component/") || !metric.getKey().endsWith("]"))
+						return "bad metric name " + metric.getKey();
+					Object value = metric.getValue();
+					if (value instanceof Map) {
+						Map<String, Object> timeslice = (Map<String, Object>) value;
+						for (String field : new String[] {"min", "max", "total", "count", "sum_of_squares"}) {
+							if (!(timeslice.get(field) instanceof Number))
+								return "bad timeslice " + metric.getKey();
+						}
+					} else if (!(value instanceof Number))
+						return "bad value " + metric.getKey();
+				}
+				count += componentMetrics.size();
+				lastMetrics.put((String) component.get("name"), componentMetrics);
+				addTotals((String) component.get("name"), componentMetrics);
+			}
+			metrics.addAndGet(count);
+			return null;
+		} catch (ParseException e) {
+			return "invalid JSON: " + e;
+		} catch (IOException e) {
+			return "unreadable body: " + e;
+		} catch (ClassCastException e) {
+			return "unexpected structure: " + e.getMessage();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addTotals(String name, Map<String, Object> componentMetrics) {
+		synchronized (totals) {
+			Map<String, Double> componentTotals = totals.get(name);
+			if (componentTotals == null) {
+				componentTotals = new HashMap<String, Double>();
+				totals.put(name, componentTotals);
+			}
+			for (Map.Entry<String, Object> metric : componentMetrics.entrySet()) {
+				Object value = metric.getValue();
+				if (value instanceof Map)
+					value = ((Map<String, Object>) value).get("total");
+				Double total = componentTotals.get(metric.getKey());
+				componentTotals.put(metric.getKey(), ((total != null) ? total : 0) + ((Number) value).doubleValue());
+			}
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] response = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, response.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response);
+		out.close();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int read = in.read(chunk); read >= 0; read = in.read(chunk))
+			out.write(chunk, 0, read);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,320 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricType;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.MetricsTag;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Metrics2 records read back from a capture, grouped into periods. Three formats
+ * are read:
+ *
+ * The output of Hadoop's FileSink, one record per line, tags then metrics:
+ * <pre>
+ *   1381000060000 dfs.namenode: Context=dfs, ProcessName=NameNode, Hostname=nn1, FilesCreated=12, ...
+ * </pre>
+ * A field is a tag if its value is not a number or its name is a well-known
+ * tag name; the first metric ends the tags. Records with timestamps within a
+ * second of the first record of a period belong to that period.
+ *
+ * The log of a NewRelicSink in debug mode, where every metric is logged as
+ * "name, metric, unit, value". Only raw metrics are read back (not deltas,
+ * overview, summary or percentiles), under a record named after the path of
+ * their New Relic name; values are as logged, so after the sink's scaling.
+ * The log has no timestamps: records end at the sink's "Debug is enabled"
+ * line, periods at its flush counters, and are given interval seconds apart.
+ *
+ * The sink's debug file ("debugfile"), one JSON object per record, which has
+ * the records' timestamps, periods and tags; as with the log, only raw metrics
+ * are read back, named after the last segment of their New Relic name.
+ *
+ * No format says which metrics are counters. Metrics whose integral
+ * value never goes down and grows at least once are taken as counters; a
+ * metric seen only once, such as one of a per-task record, is a gauge.
+ */
+final class MetricsDump {
+
+	private static final Set<String> kTagNames = new HashSet<String>(Arrays.asList(
+			"context", "processname", "sessionid", "hostname", "port", "jobid", "jobname", "taskid", "user"));
+	private static final String kDebugRecordEnd = "Debug is enabled on New Relic Hadoop Extension";
+	private static final String kDebugPeriodEnd = "New Relic Sink: metrics queued=";
+	private static final String kCategoryPrefix = NewRelicMetrics.kCategoryMetricName + NewRelicMetrics.kMetricTreeDivider;
+	private static final long kPeriodSlackMillis = 1000;
+
+	// A record as read, before metric types are known
+	private static class Line {
+		final long timestamp;
+		final String context, name, key;
+		final List<MetricsTag> tags;
+		final List<String> metricNames = new ArrayList<String>();
+		final List<Number> values = new ArrayList<Number>();
+
+		Line(long timestamp, String context, String name, List<MetricsTag> tags) {
+			this.timestamp = timestamp;
+			this.context = context;
+			this.name = name;
+			this.tags = tags;
+			StringBuilder key = new StringBuilder(context).append('.').append(name);
+			for (MetricsTag tag : tags)
+				key.append('|').append(tag.value());
+			this.key = key.append('|').toString();
+		}
+	}
+
+	// What the values of one metric have done so far
+	private static class History {
+		Number last;
+		boolean integral = true, decreased, increased;
+	}
+
+	private MetricsDump() {
+	}
+
+	/**
+	 * @param intervalSeconds period length given to a debug log, which has no timestamps
+	 */
+	static List<MetricsRecord[]> read(File file, int intervalSeconds) throws IOException {
+		List<List<Line>> periods = new ArrayList<List<Line>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			Boolean fileSink = null, json = null;
+			long jsonPeriod = Long.MIN_VALUE;
+			List<Line> period = new ArrayList<Line>();
+			Line debugRecord = null;
+			int lineNumber = 0;
+			for (String text = reader.readLine(); text != null; text = reader.readLine()) {
+				lineNumber++;
+				text = text.trim();
+				if (text.isEmpty())
+					continue;
+				if (json == null) {
+					json = Boolean.valueOf(text.startsWith("{"));
+					fileSink = Boolean.valueOf(parseFileSinkLine(text) != null);
+				}
+				if (json) {
+					JSONObject object;
+					try {
+						object = (JSONObject) new JSONParser().parse(text);
+					} catch (ParseException e) {
+						throw new IOException(file + ":" + lineNumber + ": not a JSON debug line - " + e);
+					}
+					long linePeriod = ((Number) object.get("period")).longValue();
+					if (!period.isEmpty() && (linePeriod != jsonPeriod)) {
+						periods.add(period);
+						period = new ArrayList<Line>();
+					}
+					jsonPeriod = linePeriod;
+					Line line = parseJsonLine(object);
+					if (line != null)
+						period.add(line);
+				} else if (fileSink) {
+					Line line = parseFileSinkLine(text);
+					if (line == null)
+						throw new IOException(file + ":" + lineNumber + ": not a FileSink record");
+					if (!period.isEmpty() && (line.timestamp > period.get(0).timestamp + kPeriodSlackMillis)) {
+						periods.add(period);
+						period = new ArrayList<Line>();
+					}
+					period.add(line);
+				} else if (text.contains(kDebugRecordEnd)) {
+					if (debugRecord != null)
+						period.add(debugRecord);
+					debugRecord = null;
+				} else if (text.contains(kDebugPeriodEnd)) {
+					if (!period.isEmpty())
+						periods.add(period);
+					period = new ArrayList<Line>();
+				} else {
+					long timestamp = (periods.size() + 1) * intervalSeconds * 1000L;
+					debugRecord = parseDebugLine(text, timestamp, debugRecord, period);
+				}
+			}
+			if (debugRecord != null)
+				period.add(debugRecord);
+			if (!period.isEmpty())
+				periods.add(period);
+		} finally {
+			reader.close();
+		}
+		return build(periods);
+	}
+
+	/**
+	 * @return the line as a record, or null if it is not one
+	 */
+	private static Line parseFileSinkLine(String text) {
+		int space = text.indexOf(' ');
+		int colon = text.indexOf(':', space + 1);
+		if ((space <= 0) || (colon < 0))
+			return null;
+		long timestamp;
+		try {
+			timestamp = Long.parseLong(text.substring(0, space));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		String recordName = text.substring(space + 1, colon);
+		int dot = recordName.indexOf('.');
+		if (dot <= 0)
+			return null;
+		List<MetricsTag> tags = new ArrayList<MetricsTag>();
+		List<String> metricNames = new ArrayList<String>();
+		List<Number> values = new ArrayList<Number>();
+		String fields = text.substring(colon + 1).trim();
+		for (String field : fields.isEmpty() ? new String[0] : fields.split(", ")) {
+			int equals = field.indexOf('=');
+			if (equals <= 0)
+				continue;
+			String name = field.substring(0, equals), value = field.substring(equals + 1);
+			Number number = parseNumber(value);
+			if (metricNames.isEmpty() && ((number == null) || kTagNames.contains(name.toLowerCase(Locale.ROOT))))
+				tags.add(new MetricsTag(Interns.info(name, name), "null".equals(value) ? null : value));
+			else if (number != null) {
+				metricNames.add(name);
+				values.add(number);
+			}
+		}
+		Line line = new Line(timestamp, recordName.substring(0, dot), recordName.substring(dot + 1), tags);
+		line.metricNames.addAll(metricNames);
+		line.values.addAll(values);
+		return line;
+	}
+
+	// "Component/<context>/<record>/<tags...>/<metric>[unit], metric, unit, value"
+	private static Line parseDebugLine(String text, long timestamp, Line record, List<Line> period) {
+		int start = text.indexOf(kCategoryPrefix);
+		if (start < 0)
+			return record;
+		String[] fields = text.substring(start).split(", ");
+		if (fields.length < 4)
+			return record;
+		String path = fields[0];
+		for (int i = 1; i < fields.length - 3; i++)
+			path += ", " + fields[i];
+		String metricName = fields[fields.length - 3];
+		Number value = parseNumber(fields[fields.length - 1]);
+		int unit = path.lastIndexOf('['), leaf = path.lastIndexOf(NewRelicMetrics.kMetricTreeDivider, unit);
+		if ((value == null) || (unit < 0) || (leaf <= kCategoryPrefix.length()))
+			return record;
+		String[] segments = path.substring(kCategoryPrefix.length(), leaf).split(String.valueOf(NewRelicMetrics.kMetricTreeDivider));
+		String first = segments[0];
+		if (first.equals(NewRelicMetrics.kDeltaMetricName) || first.startsWith(NewRelicMetrics.kOverviewMetricName)
+				|| first.equals(NewRelicPercentiles.kPercentilesMetricName))
+			return record;
+		String context = first, name = (segments.length > 1) ? segments[1] : first;
+		List<MetricsTag> tags = new ArrayList<MetricsTag>();
+		for (int i = 2; i < segments.length; i++)
+			tags.add(new MetricsTag(Interns.info("tag" + (i - 1), ""), segments[i]));
+		Line line = new Line(timestamp, context, name, tags);
+		if ((record != null) && !record.key.equals(line.key)) {
+			// A sink logs each record's metrics together
+			period.add(record);
+			record = null;
+		}
+		if (record == null)
+			record = line;
+		record.metricNames.add(metricName);
+		record.values.add(value);
+		return record;
+	}
+
+	private static Line parseJsonLine(JSONObject object) {
+		String context = (String) object.get("context");
+		if ((context == null) || context.isEmpty())
+			// Percentiles, reported at flush
+			return null;
+		List<MetricsTag> tags = new ArrayList<MetricsTag>();
+		for (Object entry : ((JSONObject) object.get("tags")).entrySet()) {
+			Map.Entry<?, ?> tag = (Map.Entry<?, ?>) entry;
+			String name = (String) tag.getKey();
+			tags.add(new MetricsTag(Interns.info(name, name), (String) tag.getValue()));
+		}
+		Line line = new Line(((Number) object.get("timestamp")).longValue(), context, (String) object.get("record"), tags);
+		for (Object entry : ((JSONObject) object.get("metrics")).entrySet()) {
+			Map.Entry<?, ?> metric = (Map.Entry<?, ?>) entry;
+			String path = (String) metric.getKey();
+			if (!path.startsWith(kCategoryPrefix) || (metric.getValue() == null))
+				continue;
+			String first = path.substring(kCategoryPrefix.length());
+			if (first.startsWith(NewRelicMetrics.kDeltaMetricName + NewRelicMetrics.kMetricTreeDivider)
+					|| first.startsWith(NewRelicMetrics.kOverviewMetricName))
+				continue;
+			int unit = path.lastIndexOf('['), leaf = path.lastIndexOf(NewRelicMetrics.kMetricTreeDivider, unit);
+			if ((unit < 0) || (leaf < 0))
+				continue;
+			line.metricNames.add(path.substring(leaf + 1, unit));
+			line.values.add((Number) metric.getValue());
+		}
+		return line;
+	}
+
+	private static Number parseNumber(String value) {
+		try {
+			if ((value.indexOf('.') < 0) && (value.indexOf('E') < 0) && !value.equals("NaN") && !value.contains("Infinity"))
+				return Long.valueOf(value);
+			return Double.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static List<MetricsRecord[]> build(List<List<Line>> periods) {
+		Map<String, History> histories = new HashMap<String, History>();
+		for (List<Line> period : periods) {
+			for (Line line : period) {
+				for (int i = 0; i < line.metricNames.size(); i++) {
+					String key = line.key + line.metricNames.get(i);
+					History history = histories.get(key);
+					if (history == null) {
+						history = new History();
+						histories.put(key, history);
+					}
+					Number value = line.values.get(i);
+					// A debug log prints counters as doubles
+					history.integral &= (value instanceof Long) || (value.doubleValue() == Math.rint(value.doubleValue()));
+					if (history.last != null) {
+						double change = value.doubleValue() - history.last.doubleValue();
+						history.decreased |= change < 0;
+						history.increased |= change > 0;
+					}
+					history.last = value;
+				}
+			}
+		}
+		List<MetricsRecord[]> result = new ArrayList<MetricsRecord[]>(periods.size());
+		for (List<Line> period : periods) {
+			MetricsRecord[] records = new MetricsRecord[period.size()];
+			for (int r = 0; r < records.length; r++) {
+				Line line = period.get(r);
+				List<AbstractMetric> metrics = new ArrayList<AbstractMetric>(line.metricNames.size());
+				for (int i = 0; i < line.metricNames.size(); i++) {
+					History history = histories.get(line.key + line.metricNames.get(i));
+					boolean counter = history.integral && history.increased && !history.decreased;
+					metrics.add(new TestRecords.Metric(line.metricNames.get(i),
+							counter ? MetricType.COUNTER : MetricType.GAUGE, line.values.get(i)));
+				}
+				records[r] = new TestRecords.Record(line.timestamp, line.context, line.name, line.tags, metrics);
+			}
+			result.add(records);
+		}
+		return result;
+	}
+}
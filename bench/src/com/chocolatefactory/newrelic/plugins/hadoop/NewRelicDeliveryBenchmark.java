@@ -0,0 +1,92 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Time for NewRelicSender to get one large period to a LocalCollector, by
+ * number of sender threads. The period is split into batch-size chunks, which
+ * the sender threads post in parallel; the collector can add latency to stand
+ * in for a remote one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicDeliveryBenchmark {
+
+	private static final int kMetrics = 20000;
+	private static final int kChunkSize = 2000;
+
+	@Param({"1", "2", "4"})
+	public int senders;
+
+	// Collector response time
+	@Param({"0", "20"})
+	public int latencyMillis;
+
+	private LocalCollector collector;
+	private NewRelicSender sender;
+	private NewRelicBatch batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		collector = new LocalCollector(8);
+		collector.setLatencyMillis(latencyMillis);
+		Context context = NewRelicSink.buildContext("0000000000000000000000000000000000000000",
+				BenchmarkRecords.kHostname, "namenode");
+		ComponentData component = context.getComponents().next();
+		SubsetConfiguration conf = BenchmarkRecords.configuration("namenode");
+		conf.setProperty("collectoruri", collector.uri());
+		conf.setProperty("senders", Integer.toString(senders));
+		conf.setProperty("batchsize", Integer.toString(kChunkSize));
+		conf.setProperty("batchlinger", "0");
+		sender = new NewRelicSender(context, component, conf);
+		sender.start();
+
+		batch = new NewRelicBatch(kMetrics);
+		for (int i = 0; i < kMetrics; i++)
+			batch.add("Component/dfs/namenode/NameNode/metric_" + i + "[ops]", i * 1.5);
+		batch.fold();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		collector.stop();
+		if ((collector.invalid() > 0) || (sender.getFailedMetrics() > 0))
+			throw new IllegalStateException("Delivery failed: " + sender.getFailedMetrics()
+					+ " metrics, last error: " + collector.lastError());
+	}
+
+	@Benchmark
+	public long deliverPeriod() {
+		long target = sender.getSentMetrics() + sender.getFailedMetrics() + batch.size();
+		// A folded batch stays the same when the sender folds it again
+		if (!sender.offer(batch))
+			throw new IllegalStateException("Send queue is full");
+		while (sender.getSentMetrics() + sender.getFailedMetrics() < target)
+			LockSupport.parkNanos(20000);
+		return target;
+	}
+}
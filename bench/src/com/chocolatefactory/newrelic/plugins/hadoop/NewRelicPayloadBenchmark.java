@@ -0,0 +1,83 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Cost of encoding one payload with NewRelicPayloadWriter.
+ * Before measuring, a payload of the same shape is posted through
+ * NewRelicSender to a LocalCollector, which rejects anything that is not
+ * valid plugin API JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicPayloadBenchmark {
+
+	@Param({"1000", "10000"})
+	public int metrics;
+
+	@Param({"false", "true"})
+	public boolean compress;
+
+	private NewRelicBatch batch;
+	private NewRelicPayloadWriter writer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		batch = new NewRelicBatch(metrics);
+		for (int i = 0; i < metrics; i++) {
+			String name = "Component/dfs/datanode/DataNode/metric_" + i + "[ops]";
+			batch.add(name, i * 1.5f);
+			// Every tenth metric is reported twice, and is folded into a timeslice
+			if (i % 10 == 0)
+				batch.add(name, i);
+		}
+		batch.fold();
+		writer = new NewRelicPayloadWriter(compress);
+
+		LocalCollector collector = new LocalCollector(1);
+		try {
+			Context context = NewRelicSink.buildContext("0000000000000000000000000000000000000000",
+					BenchmarkRecords.kHostname, "datanode");
+			ComponentData component = context.getComponents().next();
+			SubsetConfiguration conf = BenchmarkRecords.configuration("datanode");
+			conf.setProperty("collectoruri", collector.uri());
+			conf.setProperty("compress", Boolean.toString(compress));
+			new NewRelicSender(context, component, conf).deliver(batch, 0, batch.size());
+			if ((collector.payloads() != 1) || (collector.metrics() != batch.size()))
+				throw new IllegalStateException("Local collector rejected the payload: " + collector.lastError());
+		} finally {
+			collector.stop();
+		}
+	}
+
+	@Benchmark
+	public int writePayload() throws IOException {
+		writer.begin(BenchmarkRecords.kHostname, 4242, NewRelicMetrics.kHadoopAgentVersion);
+		writer.component(BenchmarkRecords.kHostname + " datanode", NewRelicMetrics.kHadoopAgentGuid,
+				NewRelicMetrics.kMetricInterval, batch, 0, batch.size());
+		writer.end();
+		return writer.length();
+	}
+}
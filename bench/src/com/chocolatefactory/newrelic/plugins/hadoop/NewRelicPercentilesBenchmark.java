@@ -0,0 +1,125 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of NewRelicPercentiles: adding one latency value to a series, and
+ * reporting the 1h and 1d percentiles of all series at the end of a period.
+ * The series are first filled with a day of values, one a minute, and the
+ * reported percentiles checked against the exact ones for the given accuracy.
+ * Sketch memory is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicPercentilesBenchmark {
+
+	private static final long kDayMillis = 86400000L;
+	private static final long kMinuteMillis = 60000L;
+	private static final double[] kQuantiles = {0.5, 0.95, 0.99};
+
+	@Param({"100", "1000"})
+	public int series;
+
+	@Param({"0.01", "0.02"})
+	public double accuracy;
+
+	private NewRelicPercentiles percentiles;
+	private NewRelicPercentiles.Series[] all;
+	private double[] values;
+	private long timestamp;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BaseConfiguration conf = new BaseConfiguration();
+		conf.setProperty("sink.percentilewindows", "3600,86400");
+		conf.setProperty("sink.percentileaccuracy", Double.toString(accuracy));
+		conf.setProperty("sink.percentilemaxseries", Integer.toString(series));
+		percentiles = new NewRelicPercentiles(new SubsetConfiguration(conf, "sink", "."));
+		all = new NewRelicPercentiles.Series[series];
+		for (int i = 0; i < series; i++)
+			all[i] = percentiles.series("Component/percentiles/rpc/rpc/Method" + i + "_avg_time", "ms");
+		// A day of per-minute averages: mostly around a few milliseconds, with slow periods
+		Random random = new Random(42);
+		values = new double[1440];
+		for (int i = 0; i < values.length; i++)
+			values[i] = Math.exp(1 + 0.5 * random.nextGaussian()) * ((random.nextInt(50) == 0) ? 40 : 1);
+		long start = 1381000000000L / kDayMillis * kDayMillis;
+		for (NewRelicPercentiles.Series target : all) {
+			for (int i = 0; i < values.length; i++)
+				percentiles.add(target, values[i], start + i * kMinuteMillis);
+		}
+		timestamp = start + (values.length - 1) * kMinuteMillis;
+		check();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.println("\n" + percentiles.seriesCount() + " series: " + percentiles.buckets() + " buckets, about "
+				+ percentiles.buckets() * 4 / 1024 + " KB");
+	}
+
+	@Benchmark
+	public void add() {
+		percentiles.add(all[next], values[next % values.length], timestamp);
+		if (++next == all.length) {
+			next = 0;
+			timestamp += kMinuteMillis;
+		}
+	}
+
+	@Benchmark
+	public int report() {
+		NewRelicBatch batch = new NewRelicBatch(series * 6);
+		percentiles.report(timestamp, batch);
+		return batch.size();
+	}
+
+	// The 1d window holds the whole day, the 1h window its last 60 values.
+	private void check() {
+		NewRelicBatch batch = new NewRelicBatch(series * 6);
+		percentiles.report(timestamp, batch);
+		if (batch.size() != series * 6)
+			throw new IllegalStateException("Reported " + batch.size() + " percentiles, expected " + series * 6);
+		double[] day = values.clone();
+		double[] hour = Arrays.copyOfRange(values, values.length - 60, values.length);
+		Arrays.sort(day);
+		Arrays.sort(hour);
+		// Reported in window order, then quantile order
+		for (int q = 0; q < kQuantiles.length; q++) {
+			check(batch, q, hour, "1h");
+			check(batch, 3 + q, day, "1d");
+		}
+	}
+
+	private void check(NewRelicBatch batch, int index, double[] sorted, String window) {
+		double quantile = kQuantiles[index % 3];
+		double exact = sorted[(int) (quantile * (sorted.length - 1))];
+		double reported = batch.total(index);
+		if (!batch.name(index).contains("/" + window + "/") || (Math.abs(reported - exact) > exact * accuracy * 1.0001))
+			throw new IllegalStateException(batch.name(index) + " is " + reported + ", expected " + exact
+					+ " within " + accuracy);
+	}
+}
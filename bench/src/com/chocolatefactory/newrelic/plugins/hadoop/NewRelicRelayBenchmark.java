@@ -0,0 +1,154 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * One period of a cluster's DataNodes reaching a LocalCollector: each host
+ * posting its own payload, or sending a frame to a NewRelicRelay on localhost
+ * that forwards all of them at once. Before measuring, the relay is checked to
+ * forward every metric it received, with a cluster component whose overview
+ * total is the sum of the hosts' totals. Posts and bytes per period are printed
+ * at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicRelayBenchmark {
+
+	private static final int kMetricsPerHost = 200;
+	private static final String kLicenseKey = "0000000000000000000000000000000000000000";
+
+	@Param({"50", "200"})
+	public int hosts;
+
+	@Param({"direct", "relay"})
+	public String mode;
+
+	// Collector response time
+	@Param({"0", "20"})
+	public int latencyMillis;
+
+	private LocalCollector collector;
+	private NewRelicRelay relay;
+	private NewRelicSender[] senders;
+	private NewRelicBatch[] batches;
+	private long periods, payloadsBefore, bytesBefore;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		collector = new LocalCollector(4);
+		if ("relay".equals(mode)) {
+			BaseConfiguration conf = new BaseConfiguration();
+			conf.setProperty("relay.nrlicensekey", kLicenseKey);
+			conf.setProperty("relay.hostname", "relay.example.com");
+			conf.setProperty("relay.bind", "127.0.0.1");
+			conf.setProperty("relay.port", "0");
+			// Forwarded by the benchmark itself
+			conf.setProperty("relay.interval", "3600");
+			conf.setProperty("relay.collectoruri", collector.uri());
+			relay = new NewRelicRelay(new SubsetConfiguration(conf, "relay", "."));
+			relay.start();
+		}
+		senders = new NewRelicSender[hosts];
+		batches = new NewRelicBatch[hosts];
+		for (int host = 0; host < hosts; host++) {
+			String hostname = String.format("worker%03d.example.com", host);
+			Context context = NewRelicSink.buildContext(kLicenseKey, hostname, "datanode");
+			SubsetConfiguration conf = BenchmarkRecords.configuration("datanode");
+			conf.setProperty("collectoruri", collector.uri());
+			if (relay != null)
+				conf.setProperty("relay", "127.0.0.1:" + relay.getPort());
+			senders[host] = new NewRelicSender(context, context.getComponents().next(), conf);
+			NewRelicBatch batch = new NewRelicBatch(kMetricsPerHost);
+			for (int i = 0; i < kMetricsPerHost - 1; i++)
+				batch.add("Component/dfs/datanode/DataNode/metric_" + i + "[ops]", i * 1.5);
+			batch.add(NewRelicSink.getSummaryMetricName("ops" + NewRelicMetrics.kRateUnitSuffix), host + 1);
+			batches[host] = batch;
+		}
+		if (relay != null)
+			checkRollup();
+		collector.setLatencyMillis(latencyMillis);
+		payloadsBefore = collector.payloads();
+		bytesBefore = collector.bytes();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (relay != null)
+			relay.stop();
+		collector.stop();
+		long failed = 0, sinkBytes = 0;
+		for (NewRelicSender sender : senders) {
+			failed += sender.getFailedMetrics();
+			sinkBytes += sender.getSentBytes();
+		}
+		if (relay != null)
+			failed += relay.getSender().getFailedMetrics();
+		if ((collector.invalid() > 0) || (failed > 0))
+			throw new IllegalStateException("Delivery failed: " + failed + " metrics, last error: " + collector.lastError());
+		if (periods > 0)
+			System.out.println("\n" + mode + ", " + hosts + " hosts: "
+					+ (collector.payloads() - payloadsBefore) / periods + " posts and "
+					+ (collector.bytes() - bytesBefore) / periods / 1024 + " KB per period to the collector, "
+					+ sinkBytes / (periods + ((relay != null) ? 1 : 0)) / 1024 + " KB per period from the sinks");
+	}
+
+	@Benchmark
+	public long period() {
+		for (int host = 0; host < hosts; host++)
+			senders[host].deliver(batches[host], 0, kMetricsPerHost);
+		if (relay != null)
+			relay.forward();
+		periods++;
+		return collector.payloads();
+	}
+
+	private void checkRollup() {
+		long metricsBefore = collector.metrics();
+		for (int host = 0; host < hosts; host++)
+			senders[host].deliver(batches[host], 0, kMetricsPerHost);
+		relay.forward();
+		check(relay.getReceivedMetrics() == (long) hosts * kMetricsPerHost, "relay received "
+				+ relay.getReceivedMetrics() + " metrics");
+		// Two cluster metrics: reporting hosts and total ops
+		long expected = (long) hosts * kMetricsPerHost + 2;
+		check(collector.metrics() - metricsBefore == expected, "collector received "
+				+ (collector.metrics() - metricsBefore) + " metrics, expected " + expected);
+		Map<String, Object> cluster = collector.componentMetrics(NewRelicMetrics.kDefaultAgentName + " datanode");
+		check(cluster != null, "no cluster component");
+		Object total = cluster.get(NewRelicSink.getSummaryMetricName("ops" + NewRelicMetrics.kRateUnitSuffix));
+		long sum = (long) hosts * (hosts + 1) / 2;
+		check((total instanceof Number) && (((Number) total).longValue() == sum), "cluster total ops is " + total
+				+ ", expected " + sum);
+		check(((Number) cluster.get("Component/overview/reporting hosts[hosts]")).intValue() == hosts,
+				"wrong number of reporting hosts");
+	}
+
+	private void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException("Relay check failed: " + message + " (last error: " + collector.lastError() + ")");
+	}
+}
@@ -0,0 +1,387 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.MetricsTag;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Replays captured Metrics2 records (see MetricsDump) through NewRelicSink, to
+ * size the sink for a cluster before deploying it. Every simulated host has a
+ * sink of its own, with its own sender thread, posting to a LocalCollector or,
+ * with --relay, through a NewRelicRelay, all in this JVM. The dump is repeated
+ * as often as needed for the number of periods asked for; a repeat looks to the
+ * sinks like daemons that restarted.
+ *
+ * Reported at the end: CPU per record of the threads putting records (first
+ * period, when metrics are registered, and the rest), of the sender threads,
+ * heap growth after the first period, delivery throughput, and metrics dropped,
+ * failed or spooled.
+ * <pre>
+ *   mvn -f bench/pom.xml package exec:exec -Dbench.main=com.chocolatefactory.newrelic.plugins.hadoop.NewRelicReplay \
+ *       -Dbench.args="metrics.out --hosts 1000 --speedup 60 --periods 30"
+ * </pre>
+ * Instead of a dump file, "profile:namenode" (or datanode, tasktracker)
+ * replays the synthetic records of the benchmarks.
+ */
+public class NewRelicReplay {
+
+	private static final String kUsage = "Usage: NewRelicReplay <dump file | profile:namenode|datanode|tasktracker> [options]\n"
+			+ "  --hosts N        simulated hosts, each with its own sink (1)\n"
+			+ "  --periods N      periods to replay, repeating the dump as needed (one pass)\n"
+			+ "  --speedup X      replay X times faster than recorded, 0 for as fast as possible (0)\n"
+			+ "  --threads N      threads putting records (available processors)\n"
+			+ "  --latency MS     collector response time in milliseconds (0)\n"
+			+ "  --interval S     seconds between the periods of a debug log or profile (60)\n"
+			+ "  --relay          post through a NewRelicRelay on localhost\n"
+			+ "  --set KEY=VALUE  sink setting, e.g. --set aggregate=true (repeatable)\n"
+			+ "  --verbose        keep the sinks' logging";
+	private static final String kLicenseKey = "0000000000000000000000000000000000000000";
+	private static final long kDrainMillis = 60000;
+
+	// Keeps the sender, to read its counters
+	static class ReplaySink extends NewRelicSink {
+		NewRelicSender sender;
+
+		@Override
+		NewRelicSender createSender(Context context, ComponentData component, SubsetConfiguration conf) {
+			sender = super.createSender(context, component, conf);
+			return sender;
+		}
+	}
+
+	private final List<MetricsRecord[]> dump;
+	private final int hosts, periods, threads, latencyMillis, interval;
+	private final double speedup;
+	private final boolean useRelay;
+	private final List<String> settings;
+	private final AtomicLong putNanos = new AtomicLong(), firstPutNanos = new AtomicLong();
+	private long steadyRecords, firstRecords, latePeriods;
+
+	NewRelicReplay(List<MetricsRecord[]> dump, int hosts, int periods, int threads, double speedup, int latencyMillis,
+			int interval, boolean useRelay, List<String> settings) {
+		this.dump = dump;
+		this.hosts = hosts;
+		this.periods = periods;
+		this.threads = Math.min(threads, hosts);
+		this.speedup = speedup;
+		this.latencyMillis = latencyMillis;
+		this.interval = interval;
+		this.useRelay = useRelay;
+		this.settings = settings;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println(kUsage);
+			System.exit(2);
+		}
+		int hosts = 1, periods = 0, threads = Runtime.getRuntime().availableProcessors(), latencyMillis = 0, interval = NewRelicMetrics.kMetricInterval;
+		double speedup = 0;
+		boolean useRelay = false, verbose = false;
+		List<String> settings = new ArrayList<String>();
+		try {
+			for (int i = 1; i < args.length; i++) {
+				String option = args[i];
+				if (option.equals("--relay"))
+					useRelay = true;
+				else if (option.equals("--verbose"))
+					verbose = true;
+				else if (i + 1 == args.length)
+					throw new IllegalArgumentException("missing value for " + option);
+				else if (option.equals("--hosts"))
+					hosts = Integer.parseInt(args[++i]);
+				else if (option.equals("--periods"))
+					periods = Integer.parseInt(args[++i]);
+				else if (option.equals("--speedup"))
+					speedup = Double.parseDouble(args[++i]);
+				else if (option.equals("--threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (option.equals("--latency"))
+					latencyMillis = Integer.parseInt(args[++i]);
+				else if (option.equals("--interval"))
+					interval = Integer.parseInt(args[++i]);
+				else if (option.equals("--set") && args[i + 1].contains("="))
+					settings.add(args[++i]);
+				else
+					throw new IllegalArgumentException("unknown option " + option);
+			}
+			if ((hosts < 1) || (threads < 1) || (interval < 1) || (periods < 0) || (speedup < 0))
+				throw new IllegalArgumentException("counts must be positive");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\n" + kUsage);
+			System.exit(2);
+		}
+		if (!verbose)
+			Context.getLogger().setLevel(Level.WARNING);
+
+		List<MetricsRecord[]> dump;
+		if (args[0].startsWith("profile:"))
+			dump = Arrays.asList(BenchmarkRecords.periods(args[0].substring("profile:".length()), 64, 50));
+		else
+			dump = MetricsDump.read(new File(args[0]), interval);
+		if (dump.isEmpty()) {
+			System.err.println("No records in " + args[0]);
+			System.exit(1);
+		}
+		new NewRelicReplay(dump, hosts, (periods > 0) ? periods : dump.size(), threads, speedup, latencyMillis,
+				interval, useRelay, settings).run();
+		System.exit(0);
+	}
+
+	void run() throws IOException, InterruptedException, ExecutionException {
+		LocalCollector collector = new LocalCollector(4);
+		collector.setLatencyMillis(latencyMillis);
+		NewRelicRelay relay = null;
+		if (useRelay) {
+			BaseConfiguration relayConf = new BaseConfiguration();
+			relayConf.setProperty("relay.nrlicensekey", kLicenseKey);
+			relayConf.setProperty("relay.bind", "127.0.0.1");
+			relayConf.setProperty("relay.port", "0");
+			// Forwarded after each period
+			relayConf.setProperty("relay.interval", "3600");
+			relayConf.setProperty("relay.collectoruri", collector.uri());
+			relay = new NewRelicRelay(new SubsetConfiguration(relayConf, "relay", "."));
+			relay.start();
+		}
+		final ReplaySink[] sinks = new ReplaySink[hosts];
+		String proctype = getProcType(dump.get(0));
+		for (int host = 0; host < hosts; host++) {
+			BaseConfiguration conf = new BaseConfiguration();
+			conf.setProperty("newrelic.proctype", proctype);
+			conf.setProperty("newrelic.nrlicensekey", kLicenseKey);
+			conf.setProperty("newrelic.hostname", String.format("replay%05d.example.com", host));
+			conf.setProperty("newrelic.collectoruri", collector.uri());
+			// One NewRelicSinkStats source per JVM
+			conf.setProperty("newrelic.stats", "false");
+			if (relay != null)
+				conf.setProperty("newrelic.relay", "127.0.0.1:" + relay.getPort());
+			for (String setting : settings)
+				conf.setProperty("newrelic." + setting.substring(0, setting.indexOf('=')).trim(),
+						setting.substring(setting.indexOf('=') + 1).trim());
+			sinks[host] = new ReplaySink();
+			sinks[host].init(new SubsetConfiguration(conf, "newrelic", "."));
+		}
+
+		System.out.println("Replaying " + periods + " periods of " + dump.size() + " in the dump, " + countRecords() / dump.size()
+				+ " records per period, to " + hosts + " hosts with " + threads + " threads"
+				+ ((speedup > 0) ? ", " + speedup + " times faster than recorded" : ", as fast as possible")
+				+ ((relay != null) ? ", through a relay" : ""));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long dumpStart = dump.get(0)[0].timestamp();
+		long pass = dump.get(dump.size() - 1)[0].timestamp() - dumpStart + interval * 1000L;
+		long baselineHeap = 0, start = System.nanoTime(), steadyStart = start;
+		for (int period = 0; period < periods; period++) {
+			final MetricsRecord[] records = shift(dump.get(period % dump.size()), (period / dump.size()) * pass);
+			if (speedup > 0) {
+				long due = start + (long) ((records[0].timestamp() - dumpStart) * 1000000L / speedup);
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				else if (period > 0)
+					latePeriods++;
+			}
+			final AtomicLong nanos = (period == 0) ? firstPutNanos : putNanos;
+			List<Future<?>> slices = new ArrayList<Future<?>>(threads);
+			for (int thread = 0; thread < threads; thread++) {
+				final int from = hosts * thread / threads, to = hosts * (thread + 1) / threads;
+				slices.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+						long cpu = threadBean.getCurrentThreadCpuTime();
+						for (int host = from; host < to; host++) {
+							for (MetricsRecord record : records)
+								sinks[host].putMetrics(record);
+							sinks[host].flush();
+						}
+						nanos.addAndGet(threadBean.getCurrentThreadCpuTime() - cpu);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> slice : slices)
+				slice.get();
+			if (relay != null)
+				relay.forward();
+			if (period == 0) {
+				firstRecords = (long) records.length * hosts;
+				long pause = System.nanoTime();
+				baselineHeap = usedHeapAfterGc();
+				resetPeakHeap();
+				steadyStart = System.nanoTime();
+				// The schedule does not count the pause to measure the heap
+				start += steadyStart - pause;
+			} else
+				steadyRecords += (long) records.length * hosts;
+		}
+		drain(sinks, collector, relay);
+		long elapsed = System.nanoTime() - steadyStart;
+		pool.shutdown();
+		long endHeap = usedHeapAfterGc();
+		report(sinks, collector, relay, elapsed, baselineHeap, endHeap);
+		if (relay != null)
+			relay.stop();
+		collector.stop();
+	}
+
+	// Waits for the senders to post what was queued, and the collector to stop receiving.
+	private void drain(ReplaySink[] sinks, LocalCollector collector, NewRelicRelay relay) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + kDrainMillis, lastSent = -1;
+		while (System.currentTimeMillis() < deadline) {
+			int queued = 0;
+			long sent = collector.metrics();
+			for (ReplaySink sink : sinks) {
+				queued += sink.sender.getQueueDepth();
+				sent += sink.sender.getSentMetrics();
+			}
+			if (relay != null)
+				relay.forward();
+			// A sender holds a batch out of its queue while it lingers and posts
+			if ((queued == 0) && (sent == lastSent))
+				return;
+			lastSent = sent;
+			Thread.sleep(500);
+		}
+		System.out.println("Senders still busy after " + kDrainMillis / 1000 + " seconds");
+	}
+
+	private void report(ReplaySink[] sinks, LocalCollector collector, NewRelicRelay relay, long elapsedNanos,
+			long baselineHeap, long endHeap) {
+		long queued = 0, sent = 0, dropped = 0, failed = 0, spooled = 0, relayed = 0;
+		for (ReplaySink sink : sinks) {
+			queued += sink.sender.getQueuedMetrics();
+			sent += sink.sender.getSentMetrics();
+			dropped += sink.sender.getDroppedMetrics();
+			failed += sink.sender.getFailedMetrics();
+			spooled += sink.sender.getSpooledMetrics();
+			relayed += sink.sender.getRelayedMetrics();
+		}
+		double seconds = elapsedNanos / 1e9;
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "sink CPU per record:   %,.0f ns in the first period, %,.0f ns after",
+				perRecord(firstPutNanos.get(), firstRecords), perRecord(putNanos.get(), steadyRecords)));
+		System.out.println(String.format(Locale.ROOT, "sender CPU per record: %,.0f ns (%d threads)",
+				perRecord(threadCpu("NewRelicSink-sender"), firstRecords + steadyRecords), countThreads("NewRelicSink-sender")));
+		if (relay != null)
+			System.out.println(String.format(Locale.ROOT, "relay CPU per record:  %,.0f ns",
+					perRecord(threadCpu("NewRelicRelay-"), firstRecords + steadyRecords)));
+		System.out.println(String.format(Locale.ROOT, "heap:                  %,d KB after the first period, %,d KB at the end"
+				+ " (%+,d KB, %+,.1f KB per host), %,d KB peak", baselineHeap / 1024, endHeap / 1024,
+				(endHeap - baselineHeap) / 1024, (endHeap - baselineHeap) / 1024.0 / hosts, peakHeap() / 1024));
+		System.out.println(String.format(Locale.ROOT, "collector:             %,d metrics in %,d payloads, %,d KB;"
+				+ " %,.0f metrics/s, %,.1f payloads/s after the first period", collector.metrics(), collector.payloads(),
+				collector.bytes() / 1024, collector.metrics() / seconds, collector.payloads() / seconds));
+		// Senders fold what they post at once by name, so fewer are sent than queued when periods come faster than linger
+		System.out.println(String.format(Locale.ROOT, "sinks:                 %,d metrics queued, %,d sent after folding, %,d relayed;"
+				+ " %,d dropped, %,d failed, %,d spooled; %,d invalid payloads", queued, sent, relayed, dropped, failed,
+				spooled, collector.invalid()));
+		if (latePeriods > 0)
+			System.out.println(latePeriods + " periods started late: the sinks could not keep up with the speed-up");
+	}
+
+	private long countRecords() {
+		long count = 0;
+		for (MetricsRecord[] period : dump)
+			count += period.length;
+		return count;
+	}
+
+	private static double perRecord(long nanos, long records) {
+		return (records > 0) ? (double) nanos / records : 0;
+	}
+
+	// Records of a later pass over the dump, with their timestamps moved on
+	private static MetricsRecord[] shift(MetricsRecord[] records, long offsetMillis) {
+		if (offsetMillis == 0)
+			return records;
+		MetricsRecord[] shifted = new MetricsRecord[records.length];
+		for (int i = 0; i < records.length; i++) {
+			MetricsRecord record = records[i];
+			List<AbstractMetric> metrics = new ArrayList<AbstractMetric>();
+			for (AbstractMetric metric : record.metrics())
+				metrics.add(metric);
+			shifted[i] = new TestRecords.Record(record.timestamp() + offsetMillis, record.context(), record.name(),
+					new ArrayList<MetricsTag>(record.tags()), metrics);
+		}
+		return shifted;
+	}
+
+	// The daemon the records came from, by their ProcessName tag
+	private static String getProcType(MetricsRecord[] records) {
+		for (MetricsRecord record : records) {
+			for (MetricsTag tag : record.tags()) {
+				if (tag.name().equalsIgnoreCase("ProcessName") && (tag.value() != null))
+					return tag.value().toLowerCase(Locale.ROOT);
+			}
+		}
+		return NewRelicMetrics.kDefaultAgentName;
+	}
+
+	private static long threadCpu(String namePrefix) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long nanos = 0;
+		for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+			if ((info != null) && info.getThreadName().startsWith(namePrefix))
+				nanos += Math.max(0, threadBean.getThreadCpuTime(info.getThreadId()));
+		}
+		return nanos;
+	}
+
+	private static int countThreads(String namePrefix) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		int count = 0;
+		for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+			if ((info != null) && info.getThreadName().startsWith(namePrefix))
+				count++;
+		}
+		return count;
+	}
+
+	private static long usedHeapAfterGc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
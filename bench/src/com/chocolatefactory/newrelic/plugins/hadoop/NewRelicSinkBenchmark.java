@@ -0,0 +1,146 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Cost of NewRelicSink.putMetrics() per record, with delivery stubbed out.
+ * Every invocation puts one record; flush() is called after the last record of
+ * each period, so its cost is spread over the period's records.
+ * Run with "-prof gc" for allocation rates. Cache sizes, and the metrics
+ * added per period, are printed after each iteration; the stubbed sender
+ * drops most batches at this rate, so its count is not per period.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicSinkBenchmark {
+
+	private static final int kPeriods = 64;
+
+	@Param({"namenode", "datanode", "tasktracker"})
+	public String profile;
+
+	// Per-task records in each TaskTracker period
+	@Param({"50"})
+	public int tasks;
+
+	// Fold each period into one timeslice per metric name
+	@Param({"false", "true"})
+	public boolean aggregate;
+
+	// Drop the delta of averages and the JVM thread gauges, per filter rules
+	@Param({"false", "true"})
+	public boolean filter;
+
+	// Records of an idle cluster, whose gauges and most counters do not change
+	@Param({"false"})
+	public boolean steady;
+
+	// Hold back unchanged metrics, and report capacity every 5 periods only
+	@Param({"false", "true"})
+	public boolean suppress;
+
+	private NewRelicSink sink;
+	private MetricsRecord[][] periods;
+	private int period, record;
+	private long flushes, addedBefore;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		periods = BenchmarkRecords.periods(profile, kPeriods, tasks, steady);
+		sink = new StubbedSink();
+		SubsetConfiguration conf = BenchmarkRecords.configuration(profile);
+		conf.setProperty("aggregate", Boolean.toString(aggregate));
+		if (filter) {
+			conf.setProperty("filter.rules", "imin,averages,threads");
+			conf.setProperty("filter.imin.metric", "regex:.*_(imin|imax)_.*");
+			conf.setProperty("filter.imin.action", "exclude");
+			conf.setProperty("filter.averages.metric", "*_avg_time");
+			conf.setProperty("filter.averages.delta", "false");
+			conf.setProperty("filter.threads.context", "jvm");
+			conf.setProperty("filter.threads.metric", "threads*");
+			conf.setProperty("filter.threads.action", "exclude");
+		}
+		if (suppress) {
+			conf.setProperty("suppress", "true");
+			String rules = conf.getString("filter.rules", "");
+			conf.setProperty("filter.rules", rules.isEmpty() ? "capacity" : rules + ",capacity");
+			conf.setProperty("filter.capacity.metric", "Capacity*");
+			conf.setProperty("filter.capacity.periods", "5");
+		}
+		sink.init(conf);
+	}
+
+	@TearDown(Level.Iteration)
+	public void printCacheSizes() {
+		NewRelicMetricRegistry registry = sink.getRegistry();
+		long added = StubbedSink.added;
+		System.out.println("cache: records=" + registry.recordCount() + ", metrics=" + registry.metricCount()
+				+ ", evicted records=" + registry.evictedRecords() + ", evicted metrics=" + registry.evictedMetrics()
+				+ ", reported names=" + registry.nameCount()
+				+ "; delivered metrics=" + StubbedSink.delivered.get()
+				+ ", added per period=" + ((flushes > 0) ? (added - addedBefore) / flushes : 0));
+		flushes = 0;
+		addedBefore = added;
+	}
+
+	@Benchmark
+	public void putMetrics() {
+		MetricsRecord[] records = periods[period];
+		sink.putMetrics(records[record]);
+		if (++record == records.length) {
+			sink.flush();
+			flushes++;
+			record = 0;
+			period = (period + 1) % kPeriods;
+		}
+	}
+
+	/**
+	 * Sink whose sender discards batches instead of posting them.
+	 */
+	static class StubbedSink extends NewRelicSink {
+		static final AtomicLong delivered = new AtomicLong();
+		// Only touched by the benchmark thread
+		static long added;
+
+		@Override
+		public void addMetric(String metricName, String metricOrigName, String metricType, double metricValue) {
+			added++;
+			super.addMetric(metricName, metricOrigName, metricType, metricValue);
+		}
+
+		@Override
+		NewRelicSender createSender(Context context, ComponentData component, SubsetConfiguration conf) {
+			return new NewRelicSender(context, component, conf) {
+				@Override
+				void deliver(NewRelicBatch batch, int from, int to) {
+					delivered.addAndGet(to - from);
+				}
+			};
+		}
+	}
+}
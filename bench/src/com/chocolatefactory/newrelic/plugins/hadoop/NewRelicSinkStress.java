@@ -0,0 +1,455 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricType;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.MetricsTag;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Puts records into several sinks at once while everything around them runs:
+ * their sender threads posting to a LocalCollector, their debug file writers,
+ * and their settings watchers, with the settings file rewritten every few
+ * milliseconds (batch size, linger, aggregation). Each sink has a main thread
+ * putting a NameNode record per period and flushing, like Metrics2 does, and
+ * --writers more threads putting records of their own into the same sink at
+ * the same time.
+ *
+ * The NameNode counters move by known amounts, with late periods and resets,
+ * so the overview totals are known in advance. The run fails unless, for
+ * every sink:
+ * <ul>
+ * <li>the debug file has every record, periods in order, and one summary line
+ *     per period holding exactly the expected totals;</li>
+ * <li>the collector received, summed over the run, the expected totals and the
+ *     same amount under the overview deltas they add up;</li>
+ * <li>no metric was dropped or failed, and no payload was invalid.</li>
+ * </ul>
+ * <pre>
+ *   mvn -f bench/pom.xml package exec:exec -Dbench.main=com.chocolatefactory.newrelic.plugins.hadoop.NewRelicSinkStress \
+ *       -Dbench.args="--sinks 8 --writers 3 --periods 500"
+ * </pre>
+ */
+public class NewRelicSinkStress {
+
+	private static final String kUsage = "Usage: NewRelicSinkStress [options]\n"
+			+ "  --sinks N      sinks in this JVM, each with a thread putting NameNode records and flushing (4)\n"
+			+ "  --writers N    more threads per sink putting records into it at the same time (2)\n"
+			+ "  --periods N    periods put by each sink (300)\n"
+			+ "  --senders N    sender threads per sink (2)\n"
+			+ "  --latency MS   collector response time in milliseconds (0)\n"
+			+ "  --seed N       seed of the counter values (42)\n"
+			+ "  --verbose      keep the sinks' logging";
+	private static final String kLicenseKey = "0000000000000000000000000000000000000000";
+	private static final String kProcType = "namenode";
+	private static final long kDrainMillis = 60000;
+	// Prefix "+" marks a counter; the NameNode's operation counters are overview metrics
+	private static final String[] kNameNodeMetrics = {
+		"+CreateFileOps", "+GetBlockLocations", "+GetListingOps", "+DeleteFileOps", "+FileInfoOps",
+		"+AddBlockOps", "+Transactions_num_ops", "Transactions_avg_time", "+blockReport_num_ops",
+		"blockReport_avg_time", "SafemodeTime"
+	};
+	// Settings the watchers load in turn; none of them changes how metrics are classified
+	private static final String[] kSettings = {
+		"batchsize=40\nbatchlinger=0\n",
+		"batchsize=1000\nbatchlinger=20\naggregate=true\n",
+		"batchsize=7\nbatchlinger=5\n",
+		null
+	};
+
+	// Keeps the sender, to read its counters
+	static class StressSink extends NewRelicSink {
+		NewRelicSender sender;
+
+		@Override
+		NewRelicSender createSender(Context context, ComponentData component, SubsetConfiguration conf) {
+			sender = super.createSender(context, component, conf);
+			return sender;
+		}
+	}
+
+	private final int sinkCount, writers, periods, senders, latencyMillis;
+	private final long seed;
+	private final AtomicBoolean putting = new AtomicBoolean(true);
+	private final AtomicLong reloads = new AtomicLong();
+	// Records put by the writers, by sink
+	private final AtomicLongArray writerRecords;
+	private int failures;
+
+	NewRelicSinkStress(int sinkCount, int writers, int periods, int senders, int latencyMillis, long seed) {
+		this.sinkCount = sinkCount;
+		this.writers = writers;
+		this.periods = periods;
+		this.senders = senders;
+		this.latencyMillis = latencyMillis;
+		this.seed = seed;
+		writerRecords = new AtomicLongArray(sinkCount);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sinks = 4, writers = 2, periods = 300, senders = 2, latencyMillis = 0;
+		long seed = 42;
+		boolean verbose = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (option.equals("--verbose"))
+					verbose = true;
+				else if (i + 1 == args.length)
+					throw new IllegalArgumentException("missing value for " + option);
+				else if (option.equals("--sinks"))
+					sinks = Integer.parseInt(args[++i]);
+				else if (option.equals("--writers"))
+					writers = Integer.parseInt(args[++i]);
+				else if (option.equals("--periods"))
+					periods = Integer.parseInt(args[++i]);
+				else if (option.equals("--senders"))
+					senders = Integer.parseInt(args[++i]);
+				else if (option.equals("--latency"))
+					latencyMillis = Integer.parseInt(args[++i]);
+				else if (option.equals("--seed"))
+					seed = Long.parseLong(args[++i]);
+				else
+					throw new IllegalArgumentException("unknown option " + option);
+			}
+			if ((sinks < 1) || (writers < 0) || (periods < 2) || (senders < 1) || (latencyMillis < 0))
+				throw new IllegalArgumentException("counts must be positive");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\n" + kUsage);
+			System.exit(2);
+		}
+		if (!verbose)
+			Context.getLogger().setLevel(Level.WARNING);
+		int failures = new NewRelicSinkStress(sinks, writers, periods, senders, latencyMillis, seed).run();
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	/**
+	 * @return the number of failed checks
+	 */
+	int run() throws Exception {
+		LocalCollector collector = new LocalCollector(4);
+		collector.setLatencyMillis(latencyMillis);
+		File dir = File.createTempFile("newrelic-stress", "");
+		dir.delete();
+		dir.mkdirs();
+		final File settingsFile = new File(dir, "settings.properties");
+		writeSettings(settingsFile, kSettings[0]);
+
+		final StressSink[] sinks = new StressSink[sinkCount];
+		for (int i = 0; i < sinkCount; i++) {
+			BaseConfiguration conf = new BaseConfiguration();
+			conf.setProperty("newrelic.proctype", kProcType);
+			conf.setProperty("newrelic.nrlicensekey", kLicenseKey);
+			conf.setProperty("newrelic.hostname", hostname(i));
+			conf.setProperty("newrelic.collectoruri", collector.uri());
+			conf.setProperty("newrelic.stats", "false");
+			conf.setProperty("newrelic.senders", String.valueOf(senders));
+			// Wait for room rather than drop, so every metric reaches the collector
+			conf.setProperty("newrelic.queuetimeout", "600000");
+			conf.setProperty("newrelic.settingsfile", settingsFile.getPath());
+			conf.setProperty("newrelic.debugfile", debugFile(dir, i).getPath());
+			// Room for every line, so none is dropped
+			conf.setProperty("newrelic.debugqueuesize", String.valueOf(periods * 2 + 1000000));
+			sinks[i] = new StressSink();
+			sinks[i].init(new SubsetConfiguration(conf, "newrelic", "."));
+		}
+
+		ExecutorService pool = Executors.newCachedThreadPool();
+		List<Future<double[][]>> expected = new ArrayList<Future<double[][]>>();
+		List<Future<?>> others = new ArrayList<Future<?>>();
+		for (int i = 0; i < sinkCount; i++) {
+			final int sink = i;
+			expected.add(pool.submit(new Callable<double[][]>() {
+				@Override
+				public double[][] call() {
+					return putPeriods(sinks[sink], new Random(seed + sink));
+				}
+			}));
+			for (int w = 0; w < writers; w++) {
+				final String writer = "w" + w;
+				others.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						putWriterRecords(sinks[sink], sink, writer);
+						return null;
+					}
+				}));
+			}
+		}
+		others.add(pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				for (int turn = 1; putting.get(); turn++) {
+					Thread.sleep(15);
+					writeSettings(settingsFile, kSettings[turn % kSettings.length]);
+					reloads.incrementAndGet();
+				}
+				return null;
+			}
+		}));
+
+		long start = System.nanoTime();
+		double[][][] totals = new double[sinkCount][][];
+		for (int i = 0; i < sinkCount; i++)
+			totals[i] = expected.get(i).get();
+		putting.set(false);
+		for (Future<?> other : others)
+			other.get();
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		drain(sinks, collector, dir);
+
+		long putByWriters = 0;
+		for (int i = 0; i < sinkCount; i++)
+			putByWriters += writerRecords.get(i);
+		System.out.println(String.format(Locale.ROOT, "%d sinks, %d periods each, %,d records (%,d by %d writers per sink)"
+				+ " in %.1f s, %d settings rewrites", sinkCount, periods, sinkCount * periods + putByWriters, putByWriters, writers,
+				elapsed / 1e9, reloads.get()));
+		System.out.println(String.format(Locale.ROOT, "collector: %,d metrics in %,d payloads, %d invalid",
+				collector.metrics(), collector.payloads(), collector.invalid()));
+		check(collector.invalid() == 0, "invalid payloads: " + collector.lastError());
+		for (int i = 0; i < sinkCount; i++)
+			checkSink(i, sinks[i], totals[i], collector, dir);
+		collector.stop();
+		System.out.println((failures == 0) ? "OK" : failures + " checks FAILED");
+		return failures;
+	}
+
+	/**
+	 * Puts a NameNode record and flushes, once per period, like the Metrics2 thread.
+	 * @return the expected summary totals, by period and overview delta type (in summaryTypes() order)
+	 */
+	private double[][] putPeriods(NewRelicSink sink, Random random) {
+		NewRelicMetricTable table = new NewRelicMetricTable();
+		List<String> units = summaryTypes();
+		double[][] expected = new double[periods][units.size()];
+		long[] values = new long[kNameNodeMetrics.length];
+		double[] previous = new double[kNameNodeMetrics.length];
+		long timestamp = 1381000000000L, previousTimestamp = 0;
+		for (int period = 0; period < periods; period++) {
+			// Now and then a period comes late
+			timestamp += NewRelicMetrics.kMetricInterval * 1000L * ((random.nextInt(10) == 0) ? 2 : 1);
+			List<AbstractMetric> metrics = new ArrayList<AbstractMetric>();
+			for (int m = 0; m < kNameNodeMetrics.length; m++) {
+				String name = kNameNodeMetrics[m];
+				boolean counter = name.startsWith("+");
+				if (!counter)
+					values[m] = random.nextInt(1000);
+				else if (random.nextInt(50) == 0)
+					// The daemon restarted
+					values[m] = random.nextInt(100);
+				else
+					values[m] += random.nextInt(5000);
+				AbstractMetric metric = new TestRecords.Metric(counter ? name.substring(1) : name,
+						counter ? MetricType.COUNTER : MetricType.GAUGE, values[m]);
+				metrics.add(metric);
+
+				// The delta the sink adds to the overview total, computed as it does
+				NewRelicMetricTable.MetricClass metricClass = table.classify(metric);
+				double value = values[m] * metricClass.scale;
+				if (metricClass.overview && (period > 0)) {
+					double delta;
+					if (metricClass.counter) {
+						double increase = (value >= previous[m]) ? value - previous[m] : value;
+						delta = increase * 1000 / (timestamp - previousTimestamp);
+					} else
+						delta = value - previous[m];
+					expected[period][units.indexOf(sink.getDeltaType(metricClass.unit, metricClass.counter))] += delta;
+				}
+				previous[m] = value;
+			}
+			previousTimestamp = timestamp;
+			sink.putMetrics(new TestRecords.Record(timestamp, "dfs", kProcType,
+					Arrays.asList(Interns.tag("Context", "Metrics context", "dfs"),
+							Interns.tag("ProcessName", "Process name", "NameNode"),
+							Interns.tag("Hostname", "Local hostname", BenchmarkRecords.kHostname)),
+					metrics));
+			sink.flush();
+		}
+		return expected;
+	}
+
+	// Records of another source, put while the main thread puts and flushes
+	private void putWriterRecords(NewRelicSink sink, int sinkIndex, String writer) {
+		Random random = new Random(writer.hashCode());
+		List<MetricsTag> tags = Arrays.asList(Interns.tag("Context", "Metrics context", "stress"),
+				Interns.tag("writer", "Writer", writer));
+		long value = 0;
+		while (putting.get()) {
+			value += random.nextInt(100);
+			List<AbstractMetric> metrics = new ArrayList<AbstractMetric>();
+			for (int m = 0; m < 8; m++)
+				metrics.add(new TestRecords.Metric("writer_metric" + m, (m % 2 == 0) ? MetricType.COUNTER
+						: MetricType.GAUGE, value + m));
+			sink.putMetrics(new TestRecords.Record(System.currentTimeMillis(), "stress", "writer", tags, metrics));
+			writerRecords.incrementAndGet(sinkIndex);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void checkSink(int sink, StressSink stressSink, double[][] expected, LocalCollector collector, File dir)
+			throws IOException {
+		String host = hostname(sink);
+		List<String> units = summaryTypes();
+		NewRelicSender sender = stressSink.sender;
+		check(sender.getDroppedMetrics() == 0, host + ": " + sender.getDroppedMetrics() + " metrics dropped");
+		check(sender.getFailedMetrics() == 0, host + ": " + sender.getFailedMetrics() + " metrics failed");
+
+		// Every record and summary in the debug file, in order of periods
+		long lines = 0, summaryLines = 0, lastPeriod = -1;
+		boolean ordered = true;
+		JSONParser parser = new JSONParser();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(debugFile(dir, sink)), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				Map<String, Object> object = (Map<String, Object>) parser.parse(line);
+				long period = ((Number) object.get("period")).longValue();
+				ordered &= period >= lastPeriod;
+				lastPeriod = period;
+				lines++;
+				if (!NewRelicMetrics.kSummaryMetricName.equals(object.get("record")))
+					continue;
+				summaryLines++;
+				Map<String, Object> metrics = (Map<String, Object>) object.get("metrics");
+				for (int u = 0; u < units.size(); u++) {
+					Number value = (Number) metrics.get(NewRelicSink.getSummaryMetricName(units.get(u)));
+					double reported = (value != null) ? value.doubleValue() : Double.NaN;
+					check((period < periods) && (reported == expected[(int) period][u]), host + ": period " + period
+							+ " reported " + reported + " " + units.get(u) + " in total, expected "
+							+ ((period < periods) ? expected[(int) period][u] : "no period"));
+				}
+			}
+		} catch (ParseException e) {
+			check(false, host + ": unreadable debug file - " + e);
+		} finally {
+			reader.close();
+		}
+		check(ordered, host + ": periods out of order in the debug file");
+		check(summaryLines == periods, host + ": " + summaryLines + " summary lines for " + periods + " periods");
+		long records = periods + writerRecords.get(sink);
+		check(lines == records + summaryLines, host + ": " + lines + " debug lines for " + records + " records");
+
+		// The totals over the run at the collector, against those expected and the overview deltas
+		Map<String, Double> received = collector.componentTotals(host + " " + kProcType);
+		Map<String, Double> overviewDeltas = new HashMap<String, Double>();
+		String overviewDeltaPrefix = NewRelicMetrics.kCategoryMetricName + NewRelicMetrics.kMetricTreeDivider
+				+ NewRelicMetrics.kOverviewMetricName + "_" + NewRelicMetrics.kDeltaMetricName;
+		for (Map.Entry<String, Double> metric : received.entrySet()) {
+			String name = metric.getKey();
+			if (!name.startsWith(overviewDeltaPrefix))
+				continue;
+			String unit = name.substring(name.lastIndexOf('[') + 1, name.length() - 1);
+			Double total = overviewDeltas.get(unit);
+			overviewDeltas.put(unit, ((total != null) ? total : 0) + metric.getValue());
+		}
+		for (int u = 0; u < units.size(); u++) {
+			String unit = units.get(u);
+			double total = 0;
+			for (int period = 0; period < periods; period++)
+				total += expected[period][u];
+			Double reported = received.get(NewRelicSink.getSummaryMetricName(unit));
+			check((reported != null) && close(reported, total), host + ": collector received " + reported + " "
+					+ unit + " in total, expected " + total);
+			Double deltas = overviewDeltas.get(unit);
+			check(close((deltas != null) ? deltas : 0, total), host + ": collector received " + deltas + " " + unit
+					+ " under overview deltas, " + total + " in total");
+		}
+	}
+
+	private void check(boolean passed, String failure) {
+		if (!passed) {
+			failures++;
+			if (failures <= 20)
+				System.out.println("FAILED " + failure);
+		}
+	}
+
+	// Sums taken in another order, e.g. after folding by the senders
+	private static boolean close(double value, double expected) {
+		return Math.abs(value - expected) <= 1e-9 * Math.max(1, Math.abs(expected));
+	}
+
+	// Waits for the senders to post what was queued and the debug writers to write what they hold
+	private void drain(StressSink[] sinks, LocalCollector collector, File dir) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + kDrainMillis, last = -1;
+		while (System.currentTimeMillis() < deadline) {
+			int queued = 0;
+			long progress = collector.metrics();
+			for (int i = 0; i < sinks.length; i++) {
+				queued += sinks[i].sender.getQueueDepth();
+				progress += sinks[i].sender.getSentMetrics() + debugFile(dir, i).length();
+			}
+			if ((queued == 0) && (progress == last))
+				return;
+			last = progress;
+			TimeUnit.MILLISECONDS.sleep(500);
+		}
+		System.out.println("Senders still busy after " + kDrainMillis / 1000 + " seconds");
+	}
+
+	// Counter rates and gauge changes of each overview unit
+	private static List<String> summaryTypes() {
+		List<String> types = new ArrayList<String>();
+		for (String unit : NewRelicMetrics.HadoopOverviewMetrics) {
+			types.add(unit + NewRelicMetrics.kRateUnitSuffix);
+			types.add(unit);
+		}
+		return types;
+	}
+
+	private static String hostname(int sink) {
+		return String.format("stress%02d.example.com", sink);
+	}
+
+	private static File debugFile(File dir, int sink) {
+		return new File(dir, "debug" + sink + ".json");
+	}
+
+	// Replaces the file in one step, or removes it for null
+	private static void writeSettings(File file, String settings) throws IOException {
+		if (settings == null) {
+			file.delete();
+			return;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(settings.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		temp.renameTo(file);
+	}
+}
@@ -0,0 +1,85 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of spooling one payload and reading it back with NewRelicSpool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NewRelicSpoolBenchmark {
+
+	@Param({"1000", "10000"})
+	public int metrics;
+
+	private File spoolDirectory;
+	private NewRelicSpool spool;
+	private NewRelicSpool.Entry entry;
+	private NewRelicPayloadWriter writer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		NewRelicBatch batch = new NewRelicBatch(metrics);
+		for (int i = 0; i < metrics; i++)
+			batch.add("Component/dfs/datanode/DataNode/metric_" + i + "[ops]", i * 1.5f);
+		writer = new NewRelicPayloadWriter(true);
+		writer.begin(BenchmarkRecords.kHostname, 4242, NewRelicMetrics.kHadoopAgentVersion);
+		writer.component(BenchmarkRecords.kHostname + " datanode", NewRelicMetrics.kHadoopAgentGuid,
+				NewRelicMetrics.kMetricInterval, batch, 0, batch.size());
+		writer.end();
+		// Small segments, so that rotation is part of what is measured
+		spoolDirectory = createDirectory();
+		spool = new NewRelicSpool(spoolDirectory, 1024 * 1024, 16L * 1024 * 1024);
+		entry = new NewRelicSpool.Entry();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		delete(spoolDirectory);
+	}
+
+	@Benchmark
+	public int spoolAndReplay() throws IOException {
+		spool.append(writer.bytes(), writer.length(), metrics, writer.isCompressed());
+		spool.peek(entry);
+		spool.remove(entry);
+		return entry.length;
+	}
+
+	private static File createDirectory() throws IOException {
+		File file = File.createTempFile("newrelic-spool", "");
+		if (!file.delete() || !file.mkdir())
+			throw new IOException("Cannot create " + file);
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
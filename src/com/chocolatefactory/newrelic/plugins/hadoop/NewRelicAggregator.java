@@ -0,0 +1,135 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * Folds every value reported for a metric name during one Metrics2 period into
+ * a single timeslice (count, total, min, max, sum of squares), emitted once per
+ * flush. Records that collapse to the same name, such as per-task records whose
+ * taskId tag is skipped, then cost one entry in the payload instead of one each.
+ *
+ * Names stay registered while they keep being reported, so the steady state
+ * does not allocate; names not reported during a period are dropped when it ends.
+ */
+class NewRelicAggregator {
+
+	private static final int kInitialCapacity = 256;
+
+	private int size;
+	private int[] slots;
+	private String[] names;
+	private int[] counts;
+	private double[] totals, mins, maxs, sumsOfSquares;
+
+	NewRelicAggregator() {
+		allocate(kInitialCapacity);
+		slots = new int[kInitialCapacity * 2];
+	}
+
+	void add(String name, double value) {
+		int mask = slots.length - 1;
+		int slot = name.hashCode() & mask;
+		while (slots[slot] != 0) {
+			int i = slots[slot] - 1;
+			if (names[i].equals(name)) {
+				if (counts[i] == 0) {
+					mins[i] = value;
+					maxs[i] = value;
+				} else {
+					mins[i] = Math.min(mins[i], value);
+					maxs[i] = Math.max(maxs[i], value);
+				}
+				counts[i]++;
+				totals[i] += value;
+				sumsOfSquares[i] += value * value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == names.length) {
+			grow();
+			add(name, value);
+			return;
+		}
+		names[size] = name;
+		counts[size] = 1;
+		totals[size] = value;
+		mins[size] = value;
+		maxs[size] = value;
+		sumsOfSquares[size] = value * value;
+		slots[slot] = ++size;
+	}
+
+	/**
+	 * Number of distinct names reported so far in this period.
+	 */
+	int size() {
+		int reported = 0;
+		for (int i = 0; i < size; i++) {
+			if (counts[i] > 0)
+				reported++;
+		}
+		return reported;
+	}
+
+	/**
+	 * Ends the period: appends one timeslice per name reported during it to the
+	 * batch and resets the accumulators. Names not reported are forgotten.
+	 */
+	void drainTo(NewRelicBatch batch) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (counts[i] == 0)
+				continue;
+			batch.addTimeslice(names[i], counts[i], totals[i], mins[i], maxs[i], sumsOfSquares[i]);
+			names[kept] = names[i];
+			counts[kept] = 0;
+			totals[kept] = 0;
+			sumsOfSquares[kept] = 0;
+			kept++;
+		}
+		if (kept < size) {
+			for (int i = kept; i < size; i++)
+				names[i] = null;
+			size = kept;
+			rehash(slots.length);
+		}
+	}
+
+	private void allocate(int capacity) {
+		names = new String[capacity];
+		counts = new int[capacity];
+		totals = new double[capacity];
+		mins = new double[capacity];
+		maxs = new double[capacity];
+		sumsOfSquares = new double[capacity];
+	}
+
+	private void grow() {
+		String[] oldNames = names;
+		int[] oldCounts = counts;
+		double[] oldTotals = totals, oldMins = mins, oldMaxs = maxs, oldSumsOfSquares = sumsOfSquares;
+		allocate(names.length * 2);
+		System.arraycopy(oldNames, 0, names, 0, size);
+		System.arraycopy(oldCounts, 0, counts, 0, size);
+		System.arraycopy(oldTotals, 0, totals, 0, size);
+		System.arraycopy(oldMins, 0, mins, 0, size);
+		System.arraycopy(oldMaxs, 0, maxs, 0, size);
+		System.arraycopy(oldSumsOfSquares, 0, sumsOfSquares, 0, size);
+		rehash(names.length * 2);
+	}
+
+	private void rehash(int capacity) {
+		if (slots.length == capacity)
+			Arrays.fill(slots, 0);
+		else
+			slots = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = names[i].hashCode() & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = i + 1;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+/**
+ * Append-only list of metrics collected by the sink and handed to the sender
+ * thread as a unit. Each entry is a New Relic timeslice; a plain value is a
+ * timeslice with a count of 1.
+ */
+class NewRelicBatch {
+
+	private String[] names;
+	private int[] counts;
+	private double[] totals, mins, maxs, sumsOfSquares;
+	private int size;
+	// The sink period the metrics belong to, or -1 if not set
+	private long period = -1;
+
+	NewRelicBatch(int capacity) {
+		allocate(Math.max(capacity, 16));
+		size = 0;
+	}
+
+	void add(String name, double value) {
+		addTimeslice(name, 1, value, value, value, value * value);
+	}
+
+	void addTimeslice(String name, int count, double total, double min, double max, double sumOfSquares) {
+		if (size == names.length)
+			grow(size + 1);
+		names[size] = name;
+		counts[size] = count;
+		totals[size] = total;
+		mins[size] = min;
+		maxs[size] = max;
+		sumsOfSquares[size] = sumOfSquares;
+		size++;
+	}
+
+	void addAll(NewRelicBatch other) {
+		if (size + other.size > names.length)
+			grow(size + other.size);
+		System.arraycopy(other.names, 0, names, size, other.size);
+		System.arraycopy(other.counts, 0, counts, size, other.size);
+		System.arraycopy(other.totals, 0, totals, size, other.size);
+		System.arraycopy(other.mins, 0, mins, size, other.size);
+		System.arraycopy(other.maxs, 0, maxs, size, other.size);
+		System.arraycopy(other.sumsOfSquares, 0, sumsOfSquares, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Merges entries that share a name into one timeslice, keeping the order
+	 * in which names first appear. A payload must not repeat a metric name.
+	 */
+	void fold() {
+		int capacity = Integer.highestOneBit(Math.max(size, 8) * 4 - 1);
+		int mask = capacity - 1;
+		int[] slots = new int[capacity];
+		int folded = 0;
+		for (int i = 0; i < size; i++) {
+			int slot = names[i].hashCode() & mask;
+			while ((slots[slot] != 0) && !names[slots[slot] - 1].equals(names[i]))
+				slot = (slot + 1) & mask;
+			if (slots[slot] == 0) {
+				slots[slot] = folded + 1;
+				move(i, folded++);
+			} else {
+				int into = slots[slot] - 1;
+				counts[into] += counts[i];
+				totals[into] += totals[i];
+				mins[into] = Math.min(mins[into], mins[i]);
+				maxs[into] = Math.max(maxs[into], maxs[i]);
+				sumsOfSquares[into] += sumsOfSquares[i];
+			}
+		}
+		for (int i = folded; i < size; i++)
+			names[i] = null;
+		size = folded;
+	}
+
+	long period() {
+		return period;
+	}
+
+	void setPeriod(long period) {
+		this.period = period;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String name(int i) {
+		return names[i];
+	}
+
+	int count(int i) {
+		return counts[i];
+	}
+
+	double total(int i) {
+		return totals[i];
+	}
+
+	double min(int i) {
+		return mins[i];
+	}
+
+	double max(int i) {
+		return maxs[i];
+	}
+
+	double sumOfSquares(int i) {
+		return sumsOfSquares[i];
+	}
+
+	private void move(int from, int to) {
+		if (from == to)
+			return;
+		names[to] = names[from];
+		counts[to] = counts[from];
+		totals[to] = totals[from];
+		mins[to] = mins[from];
+		maxs[to] = maxs[from];
+		sumsOfSquares[to] = sumsOfSquares[from];
+	}
+
+	private void allocate(int capacity) {
+		names = new String[capacity];
+		counts = new int[capacity];
+		totals = new double[capacity];
+		mins = new double[capacity];
+		maxs = new double[capacity];
+		sumsOfSquares = new double[capacity];
+	}
+
+	private void grow(int minCapacity) {
+		String[] oldNames = names;
+		int[] oldCounts = counts;
+		double[] oldTotals = totals, oldMins = mins, oldMaxs = maxs, oldSumsOfSquares = sumsOfSquares;
+		allocate(Math.max(names.length * 2, minCapacity));
+		System.arraycopy(oldNames, 0, names, 0, size);
+		System.arraycopy(oldCounts, 0, counts, 0, size);
+		System.arraycopy(oldTotals, 0, totals, 0, size);
+		System.arraycopy(oldMins, 0, mins, 0, size);
+		System.arraycopy(oldMaxs, 0, maxs, 0, size);
+		System.arraycopy(oldSumsOfSquares, 0, sumsOfSquares, 0, size);
+	}
+}
@@ -0,0 +1,239 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.metrics2.MetricsTag;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Writes the sink's debug output ("debugfile") as newline-delimited JSON, one
+ * line per record with every metric the sink reported for it:
+ * <pre>
+ *   {"timestamp":1381000060000,"period":12,"context":"dfs","record":"namenode",
+ *    "tags":{"ProcessName":"NameNode",..},"metrics":{"Component/dfs/namenode/..[ops]":1130,..}}
+ * </pre>
+ * The metrics thread only queues lines; a thread of its own formats and writes
+ * them, a queue's worth at a time. When the queue is full, lines are dropped
+ * and counted rather than holding up the metrics thread. The file is rotated
+ * once it would grow past maxBytes, keeping maxFiles older ones as file.1,
+ * file.2 and so on.
+ */
+class NewRelicDebugWriter implements Runnable {
+
+	private static final Charset kUtf8 = Charset.forName("UTF-8");
+
+	/**
+	 * One record's metrics, as the sink reported them.
+	 */
+	static class Line {
+		final long timestamp, period;
+		final String context, record;
+		final Collection<MetricsTag> tags;
+		final NewRelicBatch metrics;
+
+		Line(long timestamp, long period, String context, String record, Collection<MetricsTag> tags,
+				NewRelicBatch metrics) {
+			this.timestamp = timestamp;
+			this.period = period;
+			this.context = context;
+			this.record = record;
+			this.tags = tags;
+			this.metrics = metrics;
+		}
+	}
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+	private final BlockingQueue<Line> queue;
+	private final Logger logger;
+	private final AtomicLong writtenLines = new AtomicLong();
+	private final AtomicLong droppedLines = new AtomicLong();
+	private final StringBuilder text = new StringBuilder(4096);
+	private Thread thread;
+	private OutputStream out;
+	private long fileBytes;
+	private boolean failed;
+
+	NewRelicDebugWriter(File file, int queueSize, long maxBytes, int maxFiles) {
+		this.file = file.getAbsoluteFile();
+		this.queue = new ArrayBlockingQueue<Line>(Math.max(1, queueSize));
+		this.maxBytes = Math.max(1, maxBytes);
+		this.maxFiles = Math.max(0, maxFiles);
+		this.logger = Context.getLogger();
+	}
+
+	void start() {
+		thread = new Thread(this, "NewRelicSink-debug");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes what is queued, then ends the thread.
+	 */
+	void stop() {
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Queues a line without blocking.
+	 * @return false if the queue was full and the line was dropped
+	 */
+	boolean offer(Line line) {
+		if (queue.offer(line))
+			return true;
+		droppedLines.incrementAndGet();
+		return false;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getWrittenLines() {
+		return writtenLines.get();
+	}
+
+	long getDroppedLines() {
+		return droppedLines.get();
+	}
+
+	@Override
+	public void run() {
+		List<Line> lines = new ArrayList<Line>();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				lines.add(queue.take());
+				queue.drainTo(lines);
+				write(lines);
+				lines.clear();
+			}
+		} catch (InterruptedException e) {
+			// Stopped: what is still queued is written below
+		}
+		queue.drainTo(lines);
+		write(lines);
+		close();
+	}
+
+	private void write(List<Line> lines) {
+		if (lines.isEmpty())
+			return;
+		try {
+			for (Line line : lines) {
+				text.setLength(0);
+				format(line, text);
+				byte[] bytes = text.toString().getBytes(kUtf8);
+				if (out == null)
+					open();
+				else if ((fileBytes > 0) && (fileBytes + bytes.length > maxBytes))
+					rotate();
+				out.write(bytes);
+				fileBytes += bytes.length;
+			}
+			out.flush();
+			writtenLines.addAndGet(lines.size());
+			failed = false;
+		} catch (IOException e) {
+			droppedLines.addAndGet(lines.size());
+			if (!failed)
+				logger.severe("New Relic Sink: could not write debug output to " + file + " - " + e);
+			failed = true;
+			close();
+		}
+	}
+
+	private void open() throws IOException {
+		out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+		fileBytes = file.length();
+	}
+
+	// file.(n-1) becomes file.n, ..., file becomes file.1
+	private void rotate() throws IOException {
+		close();
+		if (maxFiles == 0)
+			file.delete();
+		else {
+			new File(file.getPath() + "." + maxFiles).delete();
+			for (int i = maxFiles - 1; i >= 1; i--)
+				new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+			file.renameTo(new File(file.getPath() + ".1"));
+		}
+		open();
+	}
+
+	private void close() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Nothing left to write
+		}
+		out = null;
+	}
+
+	static void format(Line line, StringBuilder text) {
+		text.append("{\"timestamp\":").append(line.timestamp).append(",\"period\":").append(line.period)
+				.append(",\"context\":");
+		appendString(text, line.context);
+		text.append(",\"record\":");
+		appendString(text, line.record);
+		text.append(",\"tags\":{");
+		int count = 0;
+		for (MetricsTag tag : line.tags) {
+			if (count++ > 0)
+				text.append(',');
+			appendString(text, tag.name());
+			text.append(':');
+			if (tag.value() == null)
+				text.append("null");
+			else
+				appendString(text, tag.value());
+		}
+		text.append("},\"metrics\":{");
+		for (int i = 0; i < line.metrics.size(); i++) {
+			if (i > 0)
+				text.append(',');
+			appendString(text, line.metrics.name(i));
+			text.append(':');
+			double value = line.metrics.total(i);
+			if (Double.isNaN(value) || Double.isInfinite(value))
+				text.append("null");
+			else if ((value == (long) value) && (Math.abs(value) < 1e15))
+				text.append((long) value);
+			else
+				text.append(value);
+		}
+		text.append("}}\n");
+	}
+
+	private static void appendString(StringBuilder text, String value) {
+		text.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c == '"') || (c == '\\'))
+				text.append('\\').append(c);
+			else if (c < 0x20)
+				text.append(String.format("\\u%04x", (int) c));
+			else
+				text.append(c);
+		}
+		text.append('"');
+	}
+}
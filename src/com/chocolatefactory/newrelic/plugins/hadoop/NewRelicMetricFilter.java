@@ -0,0 +1,153 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Include/exclude rules from hadoop-metrics2.properties, compiled once per settings snapshot.
+ *
+ * Rules are listed in "filter.rules" and evaluated in that order; the first rule
+ * whose patterns all match a metric decides whether it is reported, and whether
+ * its delta and overview variants are. Each rule can match the record context,
+ * record name, metric name and unit, with a list of globs, or of regular
+ * expressions when prefixed with "regex:". A rule without a pattern for a field
+ * matches any value. Metrics matching no rule are reported as before.
+ * A rule can also set how often its metrics are reported, in periods, and
+ * turn change-based suppression on or off for them.
+ *
+ * The sink asks once per metric identity and keeps the answer in the registry.
+ */
+class NewRelicMetricFilter {
+
+	private static final String kRegexPrefix = "regex:";
+
+	/**
+	 * What to report for the metrics a rule matches, and how often.
+	 */
+	static class Rule {
+		final String name;
+		final boolean include, delta, overview;
+		final int periods;
+		// Null to follow the sink's "suppress" setting
+		final Boolean suppress;
+		private final Pattern[][] patterns;
+
+		Rule(String name, boolean include, boolean delta, boolean overview, int periods, Boolean suppress,
+				Pattern[][] patterns) {
+			this.name = name;
+			this.include = include;
+			this.delta = delta;
+			this.overview = overview;
+			this.periods = periods;
+			this.suppress = suppress;
+			this.patterns = patterns;
+		}
+
+		boolean matches(String... values) {
+			for (int field = 0; field < patterns.length; field++) {
+				if ((patterns[field] != null) && !matchesAny(patterns[field], values[field]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	static final Rule kReportAll = new Rule("default", true, true, true, 1, null, new Pattern[0][]);
+
+	private static final String[] kFields = {"context", "record", "metric", "unit"};
+
+	private final Rule[] rules;
+
+	NewRelicMetricFilter(Configuration conf) {
+		Logger logger = Context.getLogger();
+		List<Rule> compiled = new ArrayList<Rule>();
+		for (String name : conf.getStringArray("filter.rules")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+			String prefix = "filter." + name + ".";
+			try {
+				Pattern[][] patterns = new Pattern[kFields.length][];
+				for (int field = 0; field < kFields.length; field++)
+					patterns[field] = compile(conf.getStringArray(prefix + kFields[field]));
+				String action = conf.getString(prefix + "action", "include").trim();
+				if (!action.equalsIgnoreCase("include") && !action.equalsIgnoreCase("exclude"))
+					throw new IllegalArgumentException("unknown action \"" + action + "\"");
+				int periods = conf.getInt(prefix + "periods", 1);
+				if (periods < 1)
+					throw new IllegalArgumentException("periods must be at least 1");
+				Boolean suppress = conf.containsKey(prefix + "suppress") ? conf.getBoolean(prefix + "suppress") : null;
+				compiled.add(new Rule(name, action.equalsIgnoreCase("include"), conf.getBoolean(prefix + "delta", true),
+						conf.getBoolean(prefix + "overview", true), periods, suppress, patterns));
+			} catch (PatternSyntaxException e) {
+				logger.severe("New Relic Sink: ignoring filter rule " + name + " - " + e.getDescription());
+			} catch (RuntimeException e) {
+				logger.severe("New Relic Sink: ignoring filter rule " + name + " - " + e.getMessage());
+			}
+		}
+		rules = compiled.toArray(new Rule[compiled.size()]);
+		if (rules.length > 0)
+			logger.info("New Relic Sink: " + rules.length + " metric filter rules loaded.");
+	}
+
+	/**
+	 * @return the first rule matching the metric, or kReportAll if none does
+	 */
+	Rule match(String context, String record, String metric, String unit) {
+		for (Rule rule : rules) {
+			if (rule.matches(context, record, metric, unit))
+				return rule;
+		}
+		return kReportAll;
+	}
+
+	static boolean matchesAny(Pattern[] patterns, String value) {
+		if (value == null)
+			return false;
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(value).matches())
+				return true;
+		}
+		return false;
+	}
+
+	// Globs, or regular expressions prefixed with "regex:"; null if there are none
+	static Pattern[] compile(String[] expressions) {
+		if (expressions.length == 0)
+			return null;
+		Pattern[] patterns = new Pattern[expressions.length];
+		for (int i = 0; i < expressions.length; i++) {
+			String expression = expressions[i].trim();
+			if (expression.startsWith(kRegexPrefix))
+				patterns[i] = Pattern.compile(expression.substring(kRegexPrefix.length()));
+			else
+				patterns[i] = Pattern.compile(globToRegex(expression));
+		}
+		return patterns;
+	}
+
+	// "*" matches any run of characters and "?" any single one; everything else is literal.
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder(glob.length() + 8);
+		int literal = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if ((c == '*') || (c == '?')) {
+				if (i > literal)
+					regex.append(Pattern.quote(glob.substring(literal, i)));
+				regex.append((c == '*') ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+		if (literal < glob.length())
+			regex.append(Pattern.quote(glob.substring(literal)));
+		return regex.toString();
+	}
+}
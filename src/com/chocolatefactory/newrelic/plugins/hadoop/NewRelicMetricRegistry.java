@@ -0,0 +1,584 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.MetricsTag;
+
+/**
+ * Interns every record (name + tags) and every metric within a record into a
+ * compact integer id. Per-metric state lives in parallel arrays indexed by that
+ * id, so that the steady-state lookup neither builds strings nor boxes values.
+ * Identities are compared in full, so two metrics never share state because of
+ * a hash collision. The fully-qualified New Relic names of a metric are built
+ * once, when it is registered, and reused every period. Names that are not
+ * reported (filtered out, or over the name cap) are null; a metric with no
+ * names at all stays registered, so that decision is also made only once.
+ * Metrics with a reporting interval or change-based suppression also keep what
+ * they last reported, and when, and their change since, and metrics whose percentiles are reported
+ * hold their series.
+ *
+ * Entries not seen for a number of periods are evicted at the end of each period,
+ * and the least recently seen entries are evicted once the registry holds more
+ * than its maximum, so memory stays flat regardless of job and task churn.
+ *
+ * Records whose tags are not part of their names (e.g. per-task records) report
+ * under the same names, so the registry counts the metrics using each name, and
+ * a name counts once towards the cap on distinct names however many use it.
+ */
+class NewRelicMetricRegistry {
+
+	// Indexes into the array returned by metricPaths(); a null entry is not reported
+	static final int kRawPath = 0;
+	static final int kDeltaPath = 1;
+	static final int kOverviewPath = 2;
+	static final int kOverviewDeltaPath = 3;
+
+	private static final int kInitialCapacity = 64;
+
+	private final int maxEntries;
+	private final int idlePeriods;
+	private int period;
+	private long evictedRecords;
+	private long evictedMetrics;
+
+	// Records
+	private int recordCount, recordHighWater, recordFreeCount;
+	private int[] recordFree;
+	private int[] recordSlots;
+	private int[] recordHashes;
+	private int[] recordLastSeen;
+	private String[] recordNames;
+	private MetricsTag[][] recordTags;
+	private String[] recordBaseNames;
+
+	// Metrics
+	private int metricCount, metricHighWater, metricFreeCount;
+	private int[] metricFree;
+	private int[] metricSlots;
+	private int[] metricHashes;
+	private int[] metricLastSeen;
+	private int[] metricRecords;
+	private String[] metricKeys;
+	private NewRelicMetricTable.MetricClass[] metricClasses;
+	private String[][] metricPaths;
+	private double[] previousValues;
+	private long[] previousTimestamps;
+	private boolean[] hasPrevious;
+	private int[] reportIntervals;
+	private boolean[] suppressible;
+	private int[] reportedPeriods;
+	private double[] reportedValues, reportedDeltas;
+	private long[] reportedTimestamps;
+	private double[] heldChanges;
+	private boolean[] hasReported;
+	private NewRelicPercentiles.Series[] percentileSeries;
+	// Registered metrics reporting under each New Relic name
+	private final HashMap<String, Integer> nameRefs = new HashMap<String, Integer>();
+
+	NewRelicMetricRegistry(int maxEntries, int idlePeriods) {
+		this.maxEntries = Math.max(maxEntries, 1);
+		this.idlePeriods = Math.max(idlePeriods, 1);
+
+		recordFree = new int[kInitialCapacity];
+		recordSlots = new int[kInitialCapacity * 2];
+		recordHashes = new int[kInitialCapacity];
+		recordLastSeen = new int[kInitialCapacity];
+		recordNames = new String[kInitialCapacity];
+		recordTags = new MetricsTag[kInitialCapacity][];
+		recordBaseNames = new String[kInitialCapacity];
+
+		metricFree = new int[kInitialCapacity];
+		metricSlots = new int[kInitialCapacity * 2];
+		metricHashes = new int[kInitialCapacity];
+		metricLastSeen = new int[kInitialCapacity];
+		metricRecords = new int[kInitialCapacity];
+		metricKeys = new String[kInitialCapacity];
+		metricClasses = new NewRelicMetricTable.MetricClass[kInitialCapacity];
+		metricPaths = new String[kInitialCapacity][];
+		previousValues = new double[kInitialCapacity];
+		previousTimestamps = new long[kInitialCapacity];
+		hasPrevious = new boolean[kInitialCapacity];
+		reportIntervals = new int[kInitialCapacity];
+		suppressible = new boolean[kInitialCapacity];
+		reportedPeriods = new int[kInitialCapacity];
+		reportedValues = new double[kInitialCapacity];
+		reportedDeltas = new double[kInitialCapacity];
+		reportedTimestamps = new long[kInitialCapacity];
+		heldChanges = new double[kInitialCapacity];
+		hasReported = new boolean[kInitialCapacity];
+		percentileSeries = new NewRelicPercentiles.Series[kInitialCapacity];
+	}
+
+	/**
+	 * @return the id of this record's identity, or -1 if it has not been registered
+	 */
+	int findRecord(MetricsRecord record) {
+		int hash = recordHash(record);
+		int mask = recordSlots.length - 1;
+		for (int slot = hash & mask; recordSlots[slot] != 0; slot = (slot + 1) & mask) {
+			int id = recordSlots[slot] - 1;
+			if ((recordHashes[id] == hash) && sameRecord(id, record)) {
+				recordLastSeen[id] = period;
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	int addRecord(MetricsRecord record, String baseName) {
+		int id;
+		if (recordFreeCount > 0)
+			id = recordFree[--recordFreeCount];
+		else {
+			if (recordHighWater == recordNames.length)
+				growRecords();
+			id = recordHighWater++;
+		}
+		recordCount++;
+		recordHashes[id] = recordHash(record);
+		recordLastSeen[id] = period;
+		recordNames[id] = record.name();
+		recordTags[id] = record.tags().toArray(new MetricsTag[record.tags().size()]);
+		recordBaseNames[id] = baseName;
+		insert(recordSlots, recordHashes[id], id);
+		return id;
+	}
+
+	String recordBaseName(int recordId) {
+		return recordBaseNames[recordId];
+	}
+
+	/**
+	 * @return the id of this metric within the given record, or -1 if it has not been registered
+	 */
+	int findMetric(int recordId, AbstractMetric metric) {
+		String key = metric.name();
+		int hash = metricHash(recordId, key);
+		int mask = metricSlots.length - 1;
+		for (int slot = hash & mask; metricSlots[slot] != 0; slot = (slot + 1) & mask) {
+			int id = metricSlots[slot] - 1;
+			if ((metricHashes[id] == hash) && (metricRecords[id] == recordId) && metricKeys[id].equals(key)) {
+				metricLastSeen[id] = period;
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param reportInterval periods between reports
+	 * @param suppress whether reports of unchanged values are held back
+	 */
+	int addMetric(int recordId, AbstractMetric metric, NewRelicMetricTable.MetricClass metricClass, String[] paths,
+			int reportInterval, boolean suppress) {
+		int id;
+		if (metricFreeCount > 0)
+			id = metricFree[--metricFreeCount];
+		else {
+			if (metricHighWater == metricKeys.length)
+				growMetrics();
+			id = metricHighWater++;
+		}
+		metricCount++;
+		metricKeys[id] = metric.name();
+		metricHashes[id] = metricHash(recordId, metricKeys[id]);
+		metricLastSeen[id] = period;
+		metricRecords[id] = recordId;
+		metricClasses[id] = metricClass;
+		metricPaths[id] = paths;
+		addNames(paths);
+		hasPrevious[id] = false;
+		reportIntervals[id] = Math.max(reportInterval, 1);
+		suppressible[id] = suppress;
+		hasReported[id] = false;
+		heldChanges[id] = 0;
+		percentileSeries[id] = null;
+		insert(metricSlots, metricHashes[id], id);
+		return id;
+	}
+
+	String[] metricPaths(int metricId) {
+		return metricPaths[metricId];
+	}
+
+	String metricType(int metricId) {
+		return metricClasses[metricId].unit;
+	}
+
+	// Factor from the reported value to the New Relic unit
+	double metricScale(int metricId) {
+		return metricClasses[metricId].scale;
+	}
+
+	boolean hasPreviousValue(int metricId) {
+		return hasPrevious[metricId];
+	}
+
+	double previousValue(int metricId) {
+		return previousValues[metricId];
+	}
+
+	// Record timestamp of the previous value, in milliseconds
+	long previousTimestamp(int metricId) {
+		return previousTimestamps[metricId];
+	}
+
+	void setPreviousValue(int metricId, double value, long timestamp) {
+		previousValues[metricId] = value;
+		previousTimestamps[metricId] = timestamp;
+		hasPrevious[metricId] = true;
+	}
+
+	/**
+	 * @return true if the metric is not simply reported every period
+	 */
+	boolean isAdaptive(int metricId) {
+		return (reportIntervals[metricId] > 1) || suppressible[metricId];
+	}
+
+	int reportInterval(int metricId) {
+		return reportIntervals[metricId];
+	}
+
+	boolean isSuppressible(int metricId) {
+		return suppressible[metricId];
+	}
+
+	boolean hasReported(int metricId) {
+		return hasReported[metricId];
+	}
+
+	int periodsSinceReport(int metricId) {
+		return period - reportedPeriods[metricId];
+	}
+
+	double reportedValue(int metricId) {
+		return reportedValues[metricId];
+	}
+
+	// NaN if no delta was reported
+	double reportedDelta(int metricId) {
+		return reportedDeltas[metricId];
+	}
+
+	long reportedTimestamp(int metricId) {
+		return reportedTimestamps[metricId];
+	}
+
+	void setReported(int metricId, double value, double delta, long timestamp) {
+		reportedPeriods[metricId] = period;
+		reportedValues[metricId] = value;
+		reportedDeltas[metricId] = delta;
+		reportedTimestamps[metricId] = timestamp;
+		heldChanges[metricId] = 0;
+		hasReported[metricId] = true;
+	}
+
+	/**
+	 * Change since the last report, summed period by period so that a counter reset while the
+	 * metric is held back keeps what it counted before the reset.
+	 */
+	double heldChange(int metricId) {
+		return heldChanges[metricId];
+	}
+
+	void addHeldChange(int metricId, double change) {
+		heldChanges[metricId] += change;
+	}
+
+	// Null if the metric's percentiles are not reported
+	NewRelicPercentiles.Series percentileSeries(int metricId) {
+		return percentileSeries[metricId];
+	}
+
+	void setPercentileSeries(int metricId, NewRelicPercentiles.Series series) {
+		percentileSeries[metricId] = series;
+	}
+
+	/**
+	 * @return true for monotonically increasing counters, false for gauges
+	 */
+	boolean isCounter(int metricId) {
+		return metricClasses[metricId].counter;
+	}
+
+	/**
+	 * Closes the current period: evicts idle entries, then the least recently
+	 * seen entries beyond the maximum. Metrics of an evicted record are evicted with it.
+	 */
+	void endPeriod() {
+		for (int id = 0; id < recordHighWater; id++) {
+			if ((recordNames[id] != null) && (period - recordLastSeen[id] >= idlePeriods))
+				removeRecord(id);
+		}
+		if (recordCount > maxEntries) {
+			int cutoff = lruCutoff(recordLastSeen, recordNames, recordHighWater, recordCount);
+			for (int pass = 0; pass < 2; pass++) {
+				for (int id = 0; (id < recordHighWater) && (recordCount > maxEntries); id++) {
+					if ((recordNames[id] != null) && (recordLastSeen[id] < cutoff + pass))
+						removeRecord(id);
+				}
+			}
+		}
+
+		for (int id = 0; id < metricHighWater; id++) {
+			if ((metricKeys[id] != null) && ((period - metricLastSeen[id] >= idlePeriods)
+					|| (recordNames[metricRecords[id]] == null)))
+				removeMetric(id);
+		}
+		if (metricCount > maxEntries) {
+			int cutoff = lruCutoff(metricLastSeen, metricKeys, metricHighWater, metricCount);
+			for (int pass = 0; pass < 2; pass++) {
+				for (int id = 0; (id < metricHighWater) && (metricCount > maxEntries); id++) {
+					if ((metricKeys[id] != null) && (metricLastSeen[id] < cutoff + pass))
+						removeMetric(id);
+				}
+			}
+		}
+		period++;
+	}
+
+	int recordCount() {
+		return recordCount;
+	}
+
+	int metricCount() {
+		return metricCount;
+	}
+
+	/**
+	 * Number of distinct New Relic metric names reported by the registered metrics.
+	 */
+	int nameCount() {
+		return nameRefs.size();
+	}
+
+	/**
+	 * @return how many of these names no registered metric reports yet
+	 */
+	int countNewNames(String[] paths) {
+		int count = 0;
+		for (String path : paths) {
+			if ((path != null) && !nameRefs.containsKey(path))
+				count++;
+		}
+		return count;
+	}
+
+	private void addNames(String[] paths) {
+		for (String path : paths) {
+			if (path != null) {
+				Integer refs = nameRefs.get(path);
+				nameRefs.put(path, (refs == null) ? 1 : refs + 1);
+			}
+		}
+	}
+
+	private void removeNames(String[] paths) {
+		for (String path : paths) {
+			if (path != null) {
+				int refs = nameRefs.get(path);
+				if (refs == 1)
+					nameRefs.remove(path);
+				else
+					nameRefs.put(path, refs - 1);
+			}
+		}
+	}
+
+	long evictedRecords() {
+		return evictedRecords;
+	}
+
+	long evictedMetrics() {
+		return evictedMetrics;
+	}
+
+	/**
+	 * Finds the most recent "last seen" period at which evicting all entries
+	 * seen at or before it brings the count within the maximum. Entries seen
+	 * before the cutoff are evicted first, then as many at the cutoff as needed.
+	 * Idle entries are already gone, so ages span at most idlePeriods.
+	 */
+	private int lruCutoff(int[] lastSeen, Object[] live, int highWater, int count) {
+		int[] ages = new int[idlePeriods + 1];
+		for (int id = 0; id < highWater; id++) {
+			if (live[id] != null)
+				ages[Math.min(period - lastSeen[id], idlePeriods)]++;
+		}
+		int age = idlePeriods;
+		for (int remaining = count; age > 0; age--) {
+			remaining -= ages[age];
+			if (remaining <= maxEntries)
+				break;
+		}
+		return period - age;
+	}
+
+	private void removeRecord(int id) {
+		remove(recordSlots, recordHashes, id);
+		recordNames[id] = null;
+		recordTags[id] = null;
+		recordBaseNames[id] = null;
+		recordFree = push(recordFree, recordFreeCount++, id);
+		recordCount--;
+		evictedRecords++;
+	}
+
+	private void removeMetric(int id) {
+		remove(metricSlots, metricHashes, id);
+		metricKeys[id] = null;
+		metricClasses[id] = null;
+		removeNames(metricPaths[id]);
+		metricPaths[id] = null;
+		percentileSeries[id] = null;
+		metricFree = push(metricFree, metricFreeCount++, id);
+		metricCount--;
+		evictedMetrics++;
+	}
+
+	// Uses the name and value strings directly, since MetricsTag.hashCode() allocates.
+	private static int recordHash(MetricsRecord record) {
+		int hash = record.name().hashCode();
+		for (MetricsTag tag : record.tags()) {
+			hash = 31 * hash + tag.name().hashCode();
+			hash = 31 * hash + ((tag.value() == null) ? 0 : tag.value().hashCode());
+		}
+		return mix(hash);
+	}
+
+	private static int metricHash(int recordId, String key) {
+		return mix(recordId * 0x9E3779B9 + key.hashCode());
+	}
+
+	private static int mix(int hash) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85EBCA6B;
+		return hash ^ (hash >>> 13);
+	}
+
+	private boolean sameRecord(int id, MetricsRecord record) {
+		if (!recordNames[id].equals(record.name()))
+			return false;
+		MetricsTag[] tags = recordTags[id];
+		Iterator<MetricsTag> it = record.tags().iterator();
+		for (int i = 0; i < tags.length; i++) {
+			if (!it.hasNext())
+				return false;
+			MetricsTag tag = it.next();
+			if (!tags[i].name().equals(tag.name()) || !sameValue(tags[i].value(), tag.value()))
+				return false;
+		}
+		return !it.hasNext();
+	}
+
+	private static boolean sameValue(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private static void insert(int[] slots, int hash, int id) {
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = id + 1;
+	}
+
+	// Linear probing removal with backward shift, so lookups never need tombstones.
+	private static void remove(int[] slots, int[] hashes, int id) {
+		int mask = slots.length - 1;
+		int slot = hashes[id] & mask;
+		while (slots[slot] != id + 1)
+			slot = (slot + 1) & mask;
+		slots[slot] = 0;
+		for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+			int home = hashes[slots[next] - 1] & mask;
+			boolean movable = (slot <= next) ? ((home <= slot) || (home > next)) : ((home <= slot) && (home > next));
+			if (movable) {
+				slots[slot] = slots[next];
+				slots[next] = 0;
+				slot = next;
+			}
+		}
+	}
+
+	private static int[] push(int[] stack, int index, int id) {
+		if (index == stack.length)
+			stack = copyOf(stack, stack.length * 2);
+		stack[index] = id;
+		return stack;
+	}
+
+	private void growRecords() {
+		int capacity = recordNames.length * 2;
+		recordHashes = copyOf(recordHashes, capacity);
+		recordLastSeen = copyOf(recordLastSeen, capacity);
+		recordNames = copyOf(recordNames, new String[capacity]);
+		recordTags = copyOf(recordTags, new MetricsTag[capacity][]);
+		recordBaseNames = copyOf(recordBaseNames, new String[capacity]);
+		recordSlots = new int[capacity * 2];
+		for (int id = 0; id < recordHighWater; id++) {
+			if (recordNames[id] != null)
+				insert(recordSlots, recordHashes[id], id);
+		}
+	}
+
+	private void growMetrics() {
+		int capacity = metricKeys.length * 2;
+		metricHashes = copyOf(metricHashes, capacity);
+		metricLastSeen = copyOf(metricLastSeen, capacity);
+		metricRecords = copyOf(metricRecords, capacity);
+		metricKeys = copyOf(metricKeys, new String[capacity]);
+		metricClasses = copyOf(metricClasses, new NewRelicMetricTable.MetricClass[capacity]);
+		metricPaths = copyOf(metricPaths, new String[capacity][]);
+		previousValues = copyOf(previousValues, capacity);
+		previousTimestamps = copyOf(previousTimestamps, capacity);
+		hasPrevious = copyOf(hasPrevious, capacity);
+		reportIntervals = copyOf(reportIntervals, capacity);
+		suppressible = copyOf(suppressible, capacity);
+		reportedPeriods = copyOf(reportedPeriods, capacity);
+		reportedValues = copyOf(reportedValues, capacity);
+		reportedDeltas = copyOf(reportedDeltas, capacity);
+		reportedTimestamps = copyOf(reportedTimestamps, capacity);
+		heldChanges = copyOf(heldChanges, capacity);
+		hasReported = copyOf(hasReported, capacity);
+		percentileSeries = copyOf(percentileSeries, new NewRelicPercentiles.Series[capacity]);
+		metricSlots = new int[capacity * 2];
+		for (int id = 0; id < metricHighWater; id++) {
+			if (metricKeys[id] != null)
+				insert(metricSlots, metricHashes[id], id);
+		}
+	}
+
+	private static int[] copyOf(int[] from, int capacity) {
+		int[] to = new int[capacity];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	private static double[] copyOf(double[] from, int capacity) {
+		double[] to = new double[capacity];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	private static long[] copyOf(long[] from, int capacity) {
+		long[] to = new long[capacity];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	private static boolean[] copyOf(boolean[] from, int capacity) {
+		boolean[] to = new boolean[capacity];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	private static <T> T[] copyOf(T[] from, T[] to) {
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+}
@@ -0,0 +1,214 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricType;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Classifies metrics by name: the unit they are reported in, a factor to scale
+ * their values by, whether they are counters or gauges, and whether they belong
+ * on the overview dashboard.
+ *
+ * The built-in table comes from NewRelicMetrics. A table file can add to it or
+ * override it; each line is a metric name, or a glob, followed by attributes:
+ * <pre>
+ *   memHeapUsedM = unit=bytes, scale=1048576
+ *   *_num_ops = unit=ops, kind=counter, overview=true
+ * </pre>
+ * A metric takes each attribute from the first entry that sets it: exact names
+ * from the file, exact built-in names, globs from the file in file order, then
+ * built-in globs. Unset attributes fall back to the default unit, no scaling,
+ * the type reported by Metrics2, and overview membership by unit.
+ *
+ * The sink classifies each metric once, when it is first seen, and keeps the
+ * result in the registry.
+ */
+class NewRelicMetricTable {
+
+	/**
+	 * A resolved classification, shared by all metrics resolving to the same one.
+	 */
+	static class MetricClass {
+		final String unit;
+		final double scale;
+		final boolean counter, overview;
+
+		MetricClass(String unit, double scale, boolean counter, boolean overview) {
+			this.unit = unit;
+			this.scale = scale;
+			this.counter = counter;
+			this.overview = overview;
+		}
+	}
+
+	// One line of a table; unset attributes are null
+	private static class Entry {
+		final Pattern pattern;
+		String unit;
+		Double scale;
+		Boolean counter, overview;
+
+		Entry(Pattern pattern) {
+			this.pattern = pattern;
+		}
+	}
+
+	private final Map<String, Entry> fileNames = new HashMap<String, Entry>();
+	private final Map<String, Entry> builtinNames = new HashMap<String, Entry>();
+	private final List<Entry> filePatterns = new ArrayList<Entry>();
+	private final List<Entry> builtinPatterns = new ArrayList<Entry>();
+	private final Map<String, MetricClass> classes = new HashMap<String, MetricClass>();
+	private final Logger logger = Context.getLogger();
+
+	NewRelicMetricTable() {
+		for (Map.Entry<String, String> metric : NewRelicMetrics.HadoopMetrics.entrySet()) {
+			Entry entry = entry(null);
+			entry.unit = metric.getValue();
+			builtinNames.put(metric.getKey(), entry);
+		}
+		for (Map.Entry<String, Double> scale : NewRelicMetrics.HadoopMetricScales.entrySet()) {
+			Entry entry = entry(scale.getKey());
+			entry.scale = scale.getValue();
+			builtinPatterns.add(entry);
+		}
+	}
+
+	/**
+	 * Loads a table file from the file system or, failing that, the classpath.
+	 */
+	void load(String location) throws IOException {
+		InputStream in;
+		File file = new File(location);
+		if (file.isFile())
+			in = new FileInputStream(file);
+		else {
+			in = NewRelicMetricTable.class.getClassLoader().getResourceAsStream(location);
+			if (in == null)
+				throw new IOException("Metric table not found: " + location);
+		}
+		int entries = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			int lineNumber = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				try {
+					parse(line);
+					entries++;
+				} catch (IllegalArgumentException e) {
+					logger.warning("New Relic Sink: " + location + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		logger.info("New Relic Sink: " + entries + " metric table entries loaded from " + location);
+	}
+
+	MetricClass classify(AbstractMetric metric) {
+		String name = metric.name();
+		String unit = null;
+		Double scale = null;
+		Boolean counter = null, overview = null;
+		for (Entry entry : matches(name)) {
+			if (unit == null)
+				unit = entry.unit;
+			if (scale == null)
+				scale = entry.scale;
+			if (counter == null)
+				counter = entry.counter;
+			if (overview == null)
+				overview = entry.overview;
+		}
+		if (unit == null)
+			unit = NewRelicMetrics.kDefaultMetricType;
+		if (scale == null)
+			scale = 1.0;
+		if (counter == null)
+			counter = metric.type() == MetricType.COUNTER;
+		if (overview == null)
+			overview = NewRelicMetrics.HadoopOverviewMetrics.contains(unit);
+		return intern(unit, scale, counter, overview);
+	}
+
+	// Entries matching the name, in precedence order
+	private List<Entry> matches(String name) {
+		List<Entry> matches = new ArrayList<Entry>(4);
+		if (fileNames.containsKey(name))
+			matches.add(fileNames.get(name));
+		if (builtinNames.containsKey(name))
+			matches.add(builtinNames.get(name));
+		for (Entry entry : filePatterns) {
+			if (entry.pattern.matcher(name).matches())
+				matches.add(entry);
+		}
+		for (Entry entry : builtinPatterns) {
+			if (entry.pattern.matcher(name).matches())
+				matches.add(entry);
+		}
+		return matches;
+	}
+
+	private MetricClass intern(String unit, double scale, boolean counter, boolean overview) {
+		String key = unit + '\u0000' + scale + '\u0000' + counter + '\u0000' + overview;
+		MetricClass metricClass = classes.get(key);
+		if (metricClass == null) {
+			metricClass = new MetricClass(unit, scale, counter, overview);
+			classes.put(key, metricClass);
+		}
+		return metricClass;
+	}
+
+	private void parse(String line) {
+		int equals = line.indexOf('=');
+		if (equals <= 0)
+			throw new IllegalArgumentException("expected \"name = attributes\"");
+		String name = line.substring(0, equals).trim();
+		boolean isPattern = (name.indexOf('*') >= 0) || (name.indexOf('?') >= 0);
+		Entry entry = entry(isPattern ? name : null);
+		for (String attribute : line.substring(equals + 1).split(",")) {
+			int separator = attribute.indexOf('=');
+			if (separator <= 0)
+				throw new IllegalArgumentException("expected \"attribute=value\" in \"" + attribute.trim() + "\"");
+			String key = attribute.substring(0, separator).trim();
+			String value = attribute.substring(separator + 1).trim();
+			if (key.equals("unit"))
+				entry.unit = value;
+			else if (key.equals("scale"))
+				entry.scale = Double.valueOf(value);
+			else if (key.equals("kind")) {
+				if (!value.equals("counter") && !value.equals("gauge"))
+					throw new IllegalArgumentException("kind must be counter or gauge");
+				entry.counter = value.equals("counter");
+			} else if (key.equals("overview"))
+				entry.overview = Boolean.valueOf(value);
+			else
+				throw new IllegalArgumentException("unknown attribute \"" + key + "\"");
+		}
+		if (isPattern)
+			filePatterns.add(entry);
+		else if (fileNames.put(name, entry) != null)
+			logger.warning("New Relic Sink: metric table entry for " + name + " replaces an earlier one");
+	}
+
+	private static Entry entry(String glob) {
+		return new Entry((glob == null) ? null : Pattern.compile(NewRelicMetricFilter.globToRegex(glob)));
+	}
+}
@@ -2,21 +2,43 @@ package com.chocolatefactory.newrelic.plugins.hadoop;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 public class NewRelicMetrics {
 
 	static final HashMap<String, String> HadoopMetrics = new HashMap<String, String>();
 	static final HashMap<String, Object> HadoopTags = new HashMap<String, Object>();
 	static final HashSet<String> HadoopOverviewMetrics = new HashSet<String>();
+	static final LinkedHashMap<String, Double> HadoopMetricScales = new LinkedHashMap<String, Double>();
 	public static final String kDefaultMetricType="ms";
 	public static final int kMetricInterval = 60;
+	public static final int kDefaultBatchSize = 10000;
+	public static final int kDefaultQueueSize = 16;
+	public static final long kDefaultBatchLingerMillis = 250;
+	public static final int kConnectTimeoutMillis = 20000;
+	public static final int kReadTimeoutMillis = 20000;
+	public static final int kDefaultCacheMaxEntries = 50000;
+	public static final int kDefaultCacheIdlePeriods = 10;
+	public static final int kDefaultSpoolSegmentSize = 4 * 1024 * 1024;
+	public static final long kDefaultSpoolMaxBytes = 64L * 1024 * 1024;
+	public static final int kDefaultSpoolReplay = 5;
+	public static final int kDefaultMaxPayloadBytes = 1024 * 1024;
+	public static final int kDefaultSuppressHeartbeat = 10;
+	public static final int kDefaultDebugQueueSize = 10000;
+	public static final long kDefaultDebugFileBytes = 64L * 1024 * 1024;
+	public static final int kDefaultDebugFiles = 3;
+	public static final int kDefaultRelayPort = 8765;
+	public static final long kRelayRetryMillis = 60000;
+	public static final int kMaxRelayFrameBytes = 64 * 1024 * 1024;
 	public static final char kMetricTreeDivider='/';
-	public static final float kGigabytesToBytes=1073741824;
-	public static final float kMegabytesToBytes=1048576;
+	public static final String kRateUnitSuffix = "/second";
+	public static final double kGigabytesToBytes=1073741824;
+	public static final double kMegabytesToBytes=1048576;
 	public static final String kDefaultAgentName = "hadoop";
 	public static final String kCategoryMetricName="Component";
 	public static final String kDeltaMetricName="delta";
 	public static final String kOverviewMetricName="overview";
+	public static final String kSummaryMetricName="total";
 	
 	public static final String kHadoopAgentVersion = "0.2";
 	public static final String kHadoopAgentGuid = "com.doctorchocolate.newrelic.plugins.hadoop";
@@ -88,8 +110,6 @@ public class NewRelicMetrics {
 		HadoopMetrics.put("logFatal","messages");
 		HadoopMetrics.put("logInfo","messages");
 		HadoopMetrics.put("logWarn","messages");
-		HadoopMetrics.put("sink.file.dropped","metrics");
-		HadoopMetrics.put("sink.file.qsize","metrics");
 		HadoopMetrics.put("addBlock_num_ops","ops");
 		HadoopMetrics.put("AddBlockOps","ops");
 		HadoopMetrics.put("blockChecksumOp_num_ops","ops");
@@ -152,7 +172,7 @@ public class NewRelicMetrics {
 		HadoopMetrics.put("running_reduces","reduces");
 		HadoopMetrics.put("waiting_reduces","reduces");
 		HadoopMetrics.put("num_sinks","sinks");
-		HadoopMetrics.put("running_0","jobs ");
+		HadoopMetrics.put("running_0","jobs");
 		HadoopMetrics.put("running_1440","jobs");
 		HadoopMetrics.put("running_300","jobs");
 		HadoopMetrics.put("running_60","jobs");
@@ -188,6 +208,13 @@ public class NewRelicMetrics {
 		HadoopMetrics.put("writes_from_remote_client","writes");
 	}
 
+	// Metrics reported in other units than their New Relic unit, by name pattern
+	static {
+		HadoopMetricScales.put("*GB", kGigabytesToBytes);
+		HadoopMetricScales.put("mem*M", kMegabytesToBytes);
+		HadoopMetricScales.put("Mem*M", kMegabytesToBytes);
+	}
+
 	// 0 = skip, 1 = host, 2 = port
 	static {	
 		HadoopTags.put("hostName", 1);
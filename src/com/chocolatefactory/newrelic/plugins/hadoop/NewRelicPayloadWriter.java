@@ -0,0 +1,225 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a New Relic plugin API payload straight into a reusable byte buffer:
+ *
+ * {"agent":{"host":..,"pid":..,"version":..},
+ *  "components":[{"name":..,"guid":..,"duration":..,"metrics":{"Component/..[unit]":value, ..}}, ..]}
+ *
+ * Timeslices with a count above 1 are written as {"min","max","total","count","sum_of_squares"}.
+ * Nothing is allocated per metric apart from the text of non-integral numbers.
+ * A writer is not thread-safe; each sender thread owns one.
+ */
+class NewRelicPayloadWriter {
+
+	private static final int kInitialBufferSize = 64 * 1024;
+
+	private final boolean compress;
+	private final CompressedBuffer compressed;
+	private final char[] digits = new char[20];
+	private byte[] buffer;
+	private int length, components;
+
+	NewRelicPayloadWriter(boolean compress) {
+		this.compress = compress;
+		this.compressed = compress ? new CompressedBuffer() : null;
+		this.buffer = new byte[kInitialBufferSize];
+	}
+
+	/**
+	 * Starts a new payload, discarding the previous one.
+	 */
+	void begin(String host, int pid, String version) {
+		length = 0;
+		components = 0;
+		writeAscii("{\"agent\":{\"host\":");
+		writeString(host);
+		writeAscii(",\"pid\":");
+		writeLong(pid);
+		writeAscii(",\"version\":");
+		writeString(version);
+		writeAscii("},\"components\":[");
+	}
+
+	/**
+	 * Appends one component with the given entries of a batch.
+	 */
+	void component(String name, String guid, int duration, NewRelicBatch batch, int from, int to) {
+		if (components++ > 0)
+			writeByte(',');
+		writeAscii("{\"name\":");
+		writeString(name);
+		writeAscii(",\"guid\":");
+		writeString(guid);
+		writeAscii(",\"duration\":");
+		writeLong(duration);
+		writeAscii(",\"metrics\":{");
+		for (int i = from; i < to; i++) {
+			if (i > from)
+				writeByte(',');
+			writeString(batch.name(i));
+			writeByte(':');
+			if (batch.count(i) == 1)
+				writeNumber(batch.total(i));
+			else {
+				writeAscii("{\"min\":");
+				writeNumber(batch.min(i));
+				writeAscii(",\"max\":");
+				writeNumber(batch.max(i));
+				writeAscii(",\"total\":");
+				writeNumber(batch.total(i));
+				writeAscii(",\"count\":");
+				writeLong(batch.count(i));
+				writeAscii(",\"sum_of_squares\":");
+				writeNumber(batch.sumOfSquares(i));
+				writeByte('}');
+			}
+		}
+		writeAscii("}}");
+	}
+
+	/**
+	 * Completes the payload, compressing it if enabled.
+	 * The result is valid until the next call to begin().
+	 */
+	void end() throws IOException {
+		writeAscii("]}");
+		if (compress) {
+			compressed.reset();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192);
+			gzip.write(buffer, 0, length);
+			gzip.close();
+		}
+	}
+
+	boolean isCompressed() {
+		return compress;
+	}
+
+	byte[] bytes() {
+		return compress ? compressed.bytes() : buffer;
+	}
+
+	int length() {
+		return compress ? compressed.size() : length;
+	}
+
+	// Uncompressed size of the current payload
+	int jsonLength() {
+		return length;
+	}
+
+	int components() {
+		return components;
+	}
+
+	/**
+	 * Drops everything written since jsonLength() and components() returned the
+	 * given values, e.g. a component that made the payload too large.
+	 * Only valid before end().
+	 */
+	void truncate(int jsonLength, int components) {
+		this.length = jsonLength;
+		this.components = components;
+	}
+
+	private void writeNumber(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			writeByte('0');
+		else if ((value == (long) value) && (Math.abs(value) < 1e15))
+			writeLong((long) value);
+		else
+			writeAscii(Double.toString(value));
+	}
+
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			writeByte('-');
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		ensure(digits.length - pos);
+		while (pos < digits.length)
+			buffer[length++] = (byte) digits[pos++];
+	}
+
+	private void writeString(String value) {
+		int count = value.length();
+		// Worst case: a \\uXXXX escape or 3 UTF-8 bytes per char, plus quotes
+		ensure(count * 6 + 2);
+		buffer[length++] = '"';
+		for (int i = 0; i < count; i++) {
+			char c = value.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				buffer[length++] = '\\';
+				buffer[length++] = (byte) c;
+			} else if (c < 0x20) {
+				buffer[length++] = '\\';
+				buffer[length++] = 'u';
+				buffer[length++] = '0';
+				buffer[length++] = '0';
+				buffer[length++] = (byte) Character.forDigit(c >> 4, 16);
+				buffer[length++] = (byte) Character.forDigit(c & 0xF, 16);
+			} else if (c < 0x80)
+				buffer[length++] = (byte) c;
+			else if (c < 0x800) {
+				buffer[length++] = (byte) (0xC0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && (i + 1 < count) && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				buffer[length++] = (byte) (0xE0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		buffer[length++] = '"';
+	}
+
+	private void writeAscii(String value) {
+		int count = value.length();
+		ensure(count);
+		for (int i = 0; i < count; i++)
+			buffer[length++] = (byte) value.charAt(i);
+	}
+
+	private void writeByte(char c) {
+		ensure(1);
+		buffer[length++] = (byte) c;
+	}
+
+	private void ensure(int extra) {
+		if (length + extra > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+	}
+
+	// Gives access to the internal array, avoiding the copy made by toByteArray()
+	private static class CompressedBuffer extends ByteArrayOutputStream {
+		CompressedBuffer() {
+			super(kInitialBufferSize / 4);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+}
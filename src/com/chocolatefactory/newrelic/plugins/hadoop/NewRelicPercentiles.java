@@ -0,0 +1,212 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.SubsetConfiguration;
+
+/**
+ * Rolling-window percentiles of metrics that are themselves per-period values,
+ * such as the average latencies of Metrics2 rates (RpcProcessingTime_avg_time):
+ * p50, p95 and p99 of the values reported over the last hour, say, rather than
+ * one average per period.
+ *
+ * Each series keeps, per window, a ring of NewRelicSketch slots that each cover
+ * a fixed slice of time, by the timestamps of the values. The window's sketch is
+ * the merge of its live slots, so it covers between (slots - 1) / slots of the
+ * window and the whole window, and values from many records or hosts that share
+ * a series name are merged. Memory is bounded by the buckets per sketch and the
+ * number of series; series not updated for the longest window are dropped.
+ *
+ * Settings, read by the sink and the relay alike:
+ * <pre>
+ *   percentiles=true
+ *   percentilemetrics=*_avg_time,*AvgTime   metric names, as for filter rules
+ *   percentilewindows=3600,86400            seconds
+ *   percentileslots=6                       slots per window
+ *   percentileaccuracy=0.02                 relative accuracy of each percentile
+ *   percentilebuckets=256                   buckets per sketch at most
+ *   percentilemaxseries=500
+ * </pre>
+ * Not thread-safe.
+ */
+class NewRelicPercentiles {
+
+	static final String kPercentilesMetricName = "percentiles";
+
+	private static final double[] kQuantiles = {0.5, 0.95, 0.99};
+	private static final String[] kQuantileNames = {"p50", "p95", "p99"};
+
+	/**
+	 * The sketches of one reported name.
+	 */
+	static class Series {
+		final String name;
+		// Reported names, per window and quantile
+		private final String[][] names;
+		private final NewRelicSketch[][] slots;
+		private final long[][] slotEpochs;
+		private long lastUpdated;
+		private boolean live = true;
+
+		private Series(String name, String[][] names, NewRelicSketch[][] slots, long[][] slotEpochs) {
+			this.name = name;
+			this.names = names;
+			this.slots = slots;
+			this.slotEpochs = slotEpochs;
+		}
+	}
+
+	private final Pattern[] patterns;
+	private final long[] windowMillis, slotMillis;
+	private final String[] windowNames;
+	private final int slotCount, maxBuckets, maxSeries;
+	private final double accuracy;
+	private final LinkedHashMap<String, Series> series = new LinkedHashMap<String, Series>();
+	private final NewRelicSketch merged;
+	private long cappedSeries;
+
+	NewRelicPercentiles(SubsetConfiguration conf) {
+		String[] metrics = conf.getStringArray("percentilemetrics");
+		patterns = NewRelicMetricFilter.compile((metrics.length > 0) ? metrics : new String[] {"*_avg_time", "*AvgTime"});
+		String[] windows = conf.getStringArray("percentilewindows");
+		if (windows.length == 0)
+			windows = new String[] {"3600", "86400"};
+		slotCount = Math.max(1, conf.getInt("percentileslots", 6));
+		windowMillis = new long[windows.length];
+		slotMillis = new long[windows.length];
+		windowNames = new String[windows.length];
+		for (int w = 0; w < windows.length; w++) {
+			long seconds = Long.parseLong(windows[w].trim());
+			if (seconds <= 0)
+				throw new IllegalArgumentException("percentile windows must be positive");
+			windowMillis[w] = seconds * 1000;
+			slotMillis[w] = Math.max(1, windowMillis[w] / slotCount);
+			windowNames[w] = getWindowName(seconds);
+		}
+		accuracy = conf.getDouble("percentileaccuracy", 0.02);
+		maxBuckets = conf.getInt("percentilebuckets", 256);
+		maxSeries = conf.getInt("percentilemaxseries", 500);
+		merged = new NewRelicSketch(accuracy, maxBuckets);
+	}
+
+	boolean matches(String metricName) {
+		return NewRelicMetricFilter.matchesAny(patterns, metricName);
+	}
+
+	/**
+	 * @param name the series' name, without a unit, e.g. "Component/percentiles/rpc/rpc/RpcQueueTime_avg_time"
+	 * @return the series of that name, or null if there are already percentilemaxseries
+	 */
+	Series series(String name, String unit) {
+		Series existing = series.get(name);
+		if (existing != null)
+			return existing;
+		if (series.size() >= maxSeries) {
+			cappedSeries++;
+			return null;
+		}
+		String[][] names = new String[windowNames.length][kQuantiles.length];
+		NewRelicSketch[][] slots = new NewRelicSketch[windowNames.length][slotCount];
+		long[][] slotEpochs = new long[windowNames.length][slotCount];
+		for (int w = 0; w < windowNames.length; w++) {
+			for (int q = 0; q < kQuantiles.length; q++)
+				names[w][q] = name + NewRelicMetrics.kMetricTreeDivider + windowNames[w] + NewRelicMetrics.kMetricTreeDivider
+						+ kQuantileNames[q] + "[" + unit + "]";
+			for (int slot = 0; slot < slotCount; slot++) {
+				slots[w][slot] = new NewRelicSketch(accuracy, maxBuckets);
+				slotEpochs[w][slot] = -1;
+			}
+		}
+		Series created = new Series(name, names, slots, slotEpochs);
+		series.put(name, created);
+		return created;
+	}
+
+	void add(Series target, double value, long timestamp) {
+		if (!target.live) {
+			// Dropped while idle, but still held by the caller
+			if (series.size() >= maxSeries)
+				return;
+			target.live = true;
+			series.put(target.name, target);
+		}
+		for (int w = 0; w < slotMillis.length; w++) {
+			long epoch = timestamp / slotMillis[w];
+			int slot = (int) (epoch % slotCount);
+			if (target.slotEpochs[w][slot] != epoch) {
+				if (target.slotEpochs[w][slot] > epoch)
+					// Older than the slot's contents
+					continue;
+				target.slots[w][slot].clear();
+				target.slotEpochs[w][slot] = epoch;
+			}
+			target.slots[w][slot].add(value);
+		}
+		target.lastUpdated = Math.max(target.lastUpdated, timestamp);
+	}
+
+	/**
+	 * Adds the percentiles of every series, over each window ending at now, to the batch,
+	 * and drops the series not updated for the longest window.
+	 * @return the number of series
+	 */
+	int report(long now, NewRelicBatch batch) {
+		long longestWindow = 0;
+		for (long window : windowMillis)
+			longestWindow = Math.max(longestWindow, window);
+		for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+			Series current = it.next();
+			if (now - current.lastUpdated >= longestWindow) {
+				current.live = false;
+				it.remove();
+				continue;
+			}
+			for (int w = 0; w < windowMillis.length; w++) {
+				long oldestEpoch = now / slotMillis[w] - slotCount + 1;
+				merged.clear();
+				for (int slot = 0; slot < slotCount; slot++) {
+					if (current.slotEpochs[w][slot] >= oldestEpoch)
+						merged.merge(current.slots[w][slot]);
+				}
+				if (merged.count() == 0)
+					continue;
+				for (int q = 0; q < kQuantiles.length; q++)
+					batch.add(current.names[w][q], merged.quantile(kQuantiles[q]));
+			}
+		}
+		return series.size();
+	}
+
+	int seriesCount() {
+		return series.size();
+	}
+
+	long cappedSeries() {
+		return cappedSeries;
+	}
+
+	// Buckets allocated by all sketches, at about 4 bytes each
+	long buckets() {
+		long buckets = 0;
+		for (Series current : series.values()) {
+			for (NewRelicSketch[] window : current.slots) {
+				for (NewRelicSketch slot : window)
+					buckets += slot.buckets();
+			}
+		}
+		return buckets;
+	}
+
+	// "15m", "1h", "1d", or seconds if none fits
+	static String getWindowName(long seconds) {
+		if (seconds % 86400 == 0)
+			return (seconds / 86400) + "d";
+		if (seconds % 3600 == 0)
+			return (seconds / 3600) + "h";
+		if (seconds % 60 == 0)
+			return (seconds / 60) + "m";
+		return seconds + "s";
+	}
+}
@@ -0,0 +1,487 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Stand-alone process that posts the metrics of a whole cluster to New Relic.
+ *
+ * Sinks configured with a "relay" send it their batches as binary frames (see
+ * NewRelicRelayCodec) instead of posting them. Every interval, the relay folds
+ * what each component sent into one timeslice per metric, and adds a cluster
+ * component per daemon type whose overview totals are the sums of those of its
+ * hosts, along with the number of hosts reporting, and optionally percentiles
+ * over time of the latency metrics of all its hosts (see NewRelicPercentiles;
+ * percentilemetrics match full metric names here, such as
+ * "Component/rpc/rpc/RpcQueueTime_avg_time"). All components are posted in
+ * one payload, or as few as keep each under maxpayloadbytes before compression.
+ * Posting, spooling and replay are done by a NewRelicSender.
+ *
+ * Runs from the plugin jar, with the Hadoop classpath, and reads the "relay."
+ * settings of a properties file:
+ * <pre>
+ *   java -cp newrelic_hadoop_plugin.jar:metrics_publish-1.2.2.jar:$(hadoop classpath) \
+ *     com.chocolatefactory.newrelic.plugins.hadoop.NewRelicRelay newrelic-relay.properties
+ * </pre>
+ */
+public class NewRelicRelay {
+
+	private static final String kHostsMetricName = NewRelicMetrics.kCategoryMetricName + NewRelicMetrics.kMetricTreeDivider
+			+ NewRelicMetrics.kOverviewMetricName + NewRelicMetrics.kMetricTreeDivider + "reporting hosts[hosts]";
+	// Batches are folded as they grow, so a component costs about one entry per name
+	private static final int kFoldThreshold = 1024;
+	// Names remembered per daemon type as having a percentile series or not
+	private static final int kMaxPercentileNames = 100000;
+	private static final String kPercentilesPrefix = NewRelicMetrics.kCategoryMetricName
+			+ NewRelicMetrics.kMetricTreeDivider + NewRelicPercentiles.kPercentilesMetricName;
+
+	// What one component sent during the current interval
+	static class Component {
+		final String name, proctype;
+		final NewRelicBatch batch = new NewRelicBatch(kFoldThreshold);
+		int foldedSize;
+
+		Component(String name, String proctype) {
+			this.name = name;
+			this.proctype = proctype;
+		}
+	}
+
+	// Percentiles of one daemon type, and the series of each metric name (null for none)
+	private static class ClusterPercentiles {
+		final NewRelicPercentiles percentiles;
+		final HashMap<String, NewRelicPercentiles.Series> series = new HashMap<String, NewRelicPercentiles.Series>();
+
+		ClusterPercentiles(SubsetConfiguration conf) {
+			percentiles = new NewRelicPercentiles(conf);
+		}
+	}
+
+	// Frames are read into the buffer until complete
+	private static class Connection {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		final NewRelicRelayCodec.Decoder decoder = new NewRelicRelayCodec.Decoder();
+	}
+
+	private final Context context;
+	private final NewRelicSender sender;
+	private final NewRelicPayloadWriter writer;
+	private final String clusterName;
+	private final int interval, maxPayloadBytes, pid;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final Logger logger;
+	// Null if percentiles are not reported
+	private final SubsetConfiguration percentileConf;
+	private final Map<String, ClusterPercentiles> clusterPercentiles = new HashMap<String, ClusterPercentiles>();
+	private final AtomicLong receivedFrames = new AtomicLong();
+	private final AtomicLong receivedMetrics = new AtomicLong();
+	private final AtomicLong forwardedPayloads = new AtomicLong();
+	private Map<String, Component> components = new HashMap<String, Component>();
+	private Thread receiver;
+	private ScheduledExecutorService forwarder;
+	private volatile boolean stopping;
+	// Held while forwarding, so that receiving only waits for the swap of components
+	private final Object forwardLock = new Object();
+	private long lastForwardAt;
+	private int duration, payloadMetrics;
+
+	NewRelicRelay(SubsetConfiguration conf) throws IOException {
+		logger = Context.getLogger();
+		context = NewRelicSink.buildContext(conf.getString("nrlicensekey", ""), conf.getString("hostname", ""), "relay");
+		sender = new NewRelicSender(context, context.getComponents().next(), conf);
+		writer = new NewRelicPayloadWriter(conf.getBoolean("compress", false));
+		clusterName = conf.getString("clustername", NewRelicMetrics.kDefaultAgentName);
+		interval = conf.getInt("interval", NewRelicMetrics.kMetricInterval);
+		maxPayloadBytes = conf.getInt("maxpayloadbytes", NewRelicMetrics.kDefaultMaxPayloadBytes);
+		pid = NewRelicSender.getPid();
+		if (conf.getBoolean("percentiles", false)) {
+			// Fails here, rather than at the first forward, on bad settings
+			new NewRelicPercentiles(conf);
+			percentileConf = conf;
+		} else
+			percentileConf = null;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(conf.getString("bind", "0.0.0.0"),
+					conf.getInt("port", NewRelicMetrics.kDefaultRelayPort)), 1024);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: NewRelicRelay <properties file>");
+			System.exit(2);
+		}
+		SubsetConfiguration conf = new SubsetConfiguration(new PropertiesConfiguration(args[0]), "relay", ".");
+		if (conf.getString("nrlicensekey", "").isEmpty()) {
+			System.err.println("No New Relic License Key given (relay.nrlicensekey).");
+			System.exit(2);
+		}
+		final NewRelicRelay relay = new NewRelicRelay(conf);
+		Runtime.getRuntime().addShutdownHook(new Thread("NewRelicRelay-shutdown") {
+			@Override
+			public void run() {
+				relay.stop();
+			}
+		});
+		relay.start();
+	}
+
+	int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	long getReceivedFrames() {
+		return receivedFrames.get();
+	}
+
+	long getReceivedMetrics() {
+		return receivedMetrics.get();
+	}
+
+	long getForwardedPayloads() {
+		return forwardedPayloads.get();
+	}
+
+	NewRelicSender getSender() {
+		return sender;
+	}
+
+	void start() {
+		receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}, "NewRelicRelay-receiver");
+		receiver.start();
+		forwarder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "NewRelicRelay-forwarder");
+			}
+		});
+		forwarder.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					forward();
+				} catch (RuntimeException e) {
+					logger.severe("New Relic Relay: forwarding failed - " + e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		logger.info("New Relic Relay: listening on port " + getPort() + ", forwarding every " + interval + " seconds.");
+	}
+
+	/**
+	 * Stops receiving and forwards what was received since the last interval.
+	 */
+	void stop() {
+		stopping = true;
+		selector.wakeup();
+		try {
+			if (receiver != null)
+				receiver.join(NewRelicMetrics.kReadTimeoutMillis);
+			if (forwarder != null) {
+				forwarder.shutdown();
+				forwarder.awaitTermination(NewRelicMetrics.kReadTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		forward();
+	}
+
+	private void receive() {
+		try {
+			while (!stopping) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.isReadable())
+						read(key);
+				}
+			}
+		} catch (IOException e) {
+			logger.severe("New Relic Relay: stopped receiving - " + e);
+		} finally {
+			for (SelectionKey key : selector.keys())
+				close(key);
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing more to do with it
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	private void read(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		try {
+			if (channel.read(connection.buffer) < 0) {
+				close(key);
+				return;
+			}
+			ByteBuffer buffer = connection.buffer;
+			buffer.flip();
+			int needed = 0;
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt(buffer.position());
+				if ((length <= 0) || (length > NewRelicMetrics.kMaxRelayFrameBytes))
+					throw new IOException("bad frame length " + length);
+				if (buffer.remaining() < 4 + length) {
+					needed = 4 + length;
+					break;
+				}
+				int end = buffer.position() + 4 + length;
+				buffer.position(buffer.position() + 4);
+				ByteBuffer frame = buffer.slice();
+				frame.limit(length);
+				merge(connection.decoder, frame);
+				buffer.position(end);
+				// The sink waits for this before sending its next frame, so it never finds the socket buffer full
+				channel.write(ByteBuffer.wrap(new byte[] {NewRelicRelayCodec.kAck}));
+			}
+			buffer.compact();
+			if (needed > buffer.capacity()) {
+				ByteBuffer grown = ByteBuffer.allocate(needed);
+				buffer.flip();
+				grown.put(buffer);
+				connection.buffer = grown;
+			}
+		} catch (IOException e) {
+			logger.warning("New Relic Relay: closing connection from " + channel.socket().getRemoteSocketAddress() + " - " + e);
+			close(key);
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Nothing more to do with it
+		}
+	}
+
+	private void merge(NewRelicRelayCodec.Decoder decoder, ByteBuffer frame) throws IOException {
+		NewRelicBatch batch = decoder.decode(frame);
+		synchronized (this) {
+			Component component = components.get(decoder.component());
+			if (component == null) {
+				component = new Component(decoder.component(), decoder.proctype());
+				components.put(component.name, component);
+			}
+			component.batch.addAll(batch);
+			if (component.batch.size() > 2 * component.foldedSize + kFoldThreshold) {
+				component.batch.fold();
+				component.foldedSize = component.batch.size();
+			}
+		}
+		receivedFrames.incrementAndGet();
+		receivedMetrics.addAndGet(batch.size());
+	}
+
+	/**
+	 * Posts what was received since the last call, with the cluster components.
+	 */
+	void forward() {
+		synchronized (forwardLock) {
+			forward(swapComponents());
+		}
+	}
+
+	private synchronized Map<String, Component> swapComponents() {
+		Map<String, Component> period = components;
+		components = new HashMap<String, Component>();
+		return period;
+	}
+
+	private void forward(Map<String, Component> period) {
+		long now = System.currentTimeMillis();
+		duration = (lastForwardAt == 0) ? interval : (int) Math.max(1, Math.round((now - lastForwardAt) / 1000.0));
+		lastForwardAt = now;
+		if (period.isEmpty())
+			return;
+
+		int metrics = 0;
+		for (Component component : period.values()) {
+			component.batch.fold();
+			metrics += component.batch.size();
+		}
+		long payloadsBefore = forwardedPayloads.get();
+		writer.begin(context.agentData.host, pid, NewRelicMetrics.kHadoopAgentVersion);
+		payloadMetrics = 0;
+		Map<String, NewRelicBatch> clusters = rollUp(period.values());
+		if (percentileConf != null)
+			addPercentiles(period.values(), clusters, now);
+		for (Map.Entry<String, NewRelicBatch> cluster : clusters.entrySet())
+			write(clusterName + " " + cluster.getKey(), cluster.getValue(), 0, cluster.getValue().size());
+		for (Component component : period.values())
+			write(component.name, component.batch, 0, component.batch.size());
+		sendPayload();
+		logger.info("New Relic Relay: forwarded " + metrics + " metrics of " + period.size() + " components in "
+				+ (forwardedPayloads.get() - payloadsBefore) + " payloads; frames received=" + receivedFrames.get()
+				+ ", metrics sent=" + sender.getSentMetrics() + ", failed=" + sender.getFailedMetrics()
+				+ ", spooled=" + sender.getSpooledMetrics());
+	}
+
+	// One cluster component per daemon type. A host reports its overview totals once per
+	// period, so over the interval its counter rates are averaged, and its gauge changes,
+	// which add up from one period to the next, are summed.
+	static Map<String, NewRelicBatch> rollUp(Collection<Component> period) {
+		Map<String, Map<String, Double>> totals = new TreeMap<String, Map<String, Double>>();
+		for (Component component : period) {
+			Map<String, Double> cluster = totals.get(component.proctype);
+			if (cluster == null) {
+				cluster = new LinkedHashMap<String, Double>();
+				cluster.put(kHostsMetricName, 0.0);
+				totals.put(component.proctype, cluster);
+			}
+			cluster.put(kHostsMetricName, cluster.get(kHostsMetricName) + 1);
+			NewRelicBatch batch = component.batch;
+			for (int i = 0; i < batch.size(); i++) {
+				String name = batch.name(i);
+				if (!name.startsWith(NewRelicSink.kSummaryMetricPrefix))
+					continue;
+				String deltaType = name.substring(name.lastIndexOf('[') + 1, name.length() - 1);
+				double value = NewRelicSink.isRateType(deltaType) ? batch.total(i) / batch.count(i) : batch.total(i);
+				Double total = cluster.get(name);
+				cluster.put(name, ((total == null) ? 0 : total) + value);
+			}
+		}
+		Map<String, NewRelicBatch> clusters = new TreeMap<String, NewRelicBatch>();
+		for (Map.Entry<String, Map<String, Double>> cluster : totals.entrySet()) {
+			NewRelicBatch batch = new NewRelicBatch(cluster.getValue().size());
+			for (Map.Entry<String, Double> total : cluster.getValue().entrySet())
+				batch.add(total.getKey(), total.getValue());
+			clusters.put(cluster.getKey(), batch);
+		}
+		return clusters;
+	}
+
+	// Each host's value of a latency metric, over the interval, is a sample of its cluster's series.
+	private void addPercentiles(Collection<Component> period, Map<String, NewRelicBatch> clusters, long now) {
+		for (Component component : period) {
+			ClusterPercentiles cluster = clusterPercentiles.get(component.proctype);
+			if (cluster == null) {
+				cluster = new ClusterPercentiles(percentileConf);
+				clusterPercentiles.put(component.proctype, cluster);
+			}
+			NewRelicBatch batch = component.batch;
+			for (int i = 0; i < batch.size(); i++) {
+				NewRelicPercentiles.Series series = getPercentileSeries(cluster, batch.name(i));
+				if (series != null)
+					cluster.percentiles.add(series, batch.total(i) / batch.count(i), now);
+			}
+		}
+		for (Map.Entry<String, ClusterPercentiles> cluster : clusterPercentiles.entrySet()) {
+			NewRelicBatch batch = clusters.get(cluster.getKey());
+			if (batch != null)
+				cluster.getValue().percentiles.report(now, batch);
+		}
+	}
+
+	// Only plain metrics, "Component/<path>[unit]", are sampled, under "Component/percentiles/<path>".
+	private static NewRelicPercentiles.Series getPercentileSeries(ClusterPercentiles cluster, String name) {
+		NewRelicPercentiles.Series series = cluster.series.get(name);
+		if ((series != null) || cluster.series.containsKey(name))
+			return series;
+		if (cluster.series.size() >= kMaxPercentileNames)
+			cluster.series.clear();
+		int unit = name.lastIndexOf('[');
+		String category = NewRelicMetrics.kCategoryMetricName + NewRelicMetrics.kMetricTreeDivider;
+		if ((unit > 0) && name.endsWith("]") && name.startsWith(category) && !name.startsWith(kPercentilesPrefix)
+				&& !name.startsWith(category + NewRelicMetrics.kDeltaMetricName + NewRelicMetrics.kMetricTreeDivider)
+				&& !name.startsWith(category + NewRelicMetrics.kOverviewMetricName)
+				&& cluster.percentiles.matches(name.substring(0, unit)))
+			series = cluster.percentiles.series(kPercentilesPrefix + NewRelicMetrics.kMetricTreeDivider
+					+ name.substring(category.length(), unit), name.substring(unit + 1, name.length() - 1));
+		cluster.series.put(name, series);
+		return series;
+	}
+
+	// Adds a component to the payload, posting the payload first if the component would
+	// take it over the limit. A component too large for a payload of its own is split.
+	private void write(String name, NewRelicBatch batch, int from, int to) {
+		int mark = writer.jsonLength(), written = writer.components();
+		writer.component(name, NewRelicMetrics.kHadoopAgentGuid, duration, batch, from, to);
+		if ((writer.jsonLength() <= maxPayloadBytes) || ((written == 0) && (to - from <= 1))) {
+			payloadMetrics += to - from;
+			return;
+		}
+		writer.truncate(mark, written);
+		if (written > 0) {
+			sendPayload();
+			write(name, batch, from, to);
+		} else {
+			int middle = (from + to) >>> 1;
+			write(name, batch, from, middle);
+			// A component must not appear twice in a payload
+			sendPayload();
+			write(name, batch, middle, to);
+		}
+	}
+
+	private void sendPayload() {
+		if (writer.components() == 0)
+			return;
+		try {
+			writer.end();
+			if (sender.deliverPayload(writer, payloadMetrics))
+				forwardedPayloads.incrementAndGet();
+		} catch (IOException e) {
+			logger.severe("New Relic Relay: could not encode payload - " + e);
+		}
+		payloadMetrics = 0;
+		writer.begin(context.agentData.host, pid, NewRelicMetrics.kHadoopAgentVersion);
+	}
+}
@@ -0,0 +1,104 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * The sink's connection to a NewRelicRelay. Each chunk is sent as one frame
+ * and the relay's acknowledgement awaited. A chunk that could not be written
+ * is known not to be taken, and the sender posts it to New Relic directly. A
+ * frame written but not acknowledged (timeout, connection lost) may have been
+ * merged by the relay, so it is not sent again anywhere: delivery through the
+ * relay is at most once, rather than counting a period twice. After a failure,
+ * the relay is not tried again for kRelayRetryMillis and the sender posts to
+ * New Relic directly meanwhile. One connection is shared by all sender threads.
+ */
+class NewRelicRelayClient {
+
+	// Returned by send() for a frame the relay may or may not have taken
+	static final int kUnacknowledged = -2;
+
+	private final String address;
+	private final InetSocketAddress socketAddress;
+	private final NewRelicRelayCodec.Encoder encoder = new NewRelicRelayCodec.Encoder();
+	private final Logger logger;
+	private Socket socket;
+	private long retryAt;
+
+	/**
+	 * @param address "host:port", or a host name for the default port
+	 */
+	NewRelicRelayClient(String address) {
+		int colon = address.lastIndexOf(':');
+		String host = (colon < 0) ? address : address.substring(0, colon);
+		int port = (colon < 0) ? NewRelicMetrics.kDefaultRelayPort : Integer.parseInt(address.substring(colon + 1).trim());
+		this.address = address;
+		this.socketAddress = InetSocketAddress.createUnresolved(host.trim(), port);
+		this.logger = Context.getLogger();
+	}
+
+	/**
+	 * @return the size of the frame taken by the relay, -1 if it could not be sent,
+	 *         or kUnacknowledged if it was sent but not acknowledged
+	 */
+	synchronized int send(String component, String proctype, int duration, NewRelicBatch batch, int from, int to) {
+		if ((socket == null) && (System.currentTimeMillis() < retryAt))
+			return -1;
+		boolean written = false;
+		try {
+			if (socket == null)
+				connect();
+			encoder.encode(component, proctype, duration, batch, from, to);
+			OutputStream out = socket.getOutputStream();
+			out.write(encoder.bytes(), 0, encoder.length());
+			out.flush();
+			written = true;
+			InputStream in = socket.getInputStream();
+			if (in.read() != NewRelicRelayCodec.kAck)
+				throw new IOException("connection closed by the relay");
+			return encoder.length();
+		} catch (IOException e) {
+			if (written)
+				logger.warning("New Relic Sink: relay " + address + " did not acknowledge " + (to - from) + " metrics, not sending them again - " + e);
+			else
+				logger.warning("New Relic Sink: relay " + address + " unavailable, posting directly to New Relic - " + e);
+			close();
+			retryAt = System.currentTimeMillis() + NewRelicMetrics.kRelayRetryMillis;
+			return written ? kUnacknowledged : -1;
+		}
+	}
+
+	synchronized void close() {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more to do with it
+		}
+		socket = null;
+	}
+
+	private void connect() throws IOException {
+		Socket connection = new Socket();
+		try {
+			connection.setTcpNoDelay(true);
+			// Resolved on each connect, so a relay that moves is found again
+			connection.connect(new InetSocketAddress(socketAddress.getHostName(), socketAddress.getPort()),
+					NewRelicMetrics.kConnectTimeoutMillis);
+			connection.setSoTimeout(NewRelicMetrics.kReadTimeoutMillis);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+		socket = connection;
+		encoder.reset();
+		logger.info("New Relic Sink: sending metrics through relay " + address);
+	}
+}
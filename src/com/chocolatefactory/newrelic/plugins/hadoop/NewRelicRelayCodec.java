@@ -0,0 +1,215 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Binary frames sent by a sink to a NewRelicRelay, one per batch chunk:
+ *
+ * [int length][byte version][byte flags][string component][string proctype]
+ * [varint duration][varint metric count] then, per metric,
+ * [varint name][byte kind][value] where the value is one double for a plain
+ * value, or [varint count][double total, min, max, sum of squares] for a timeslice.
+ *
+ * Names are sent once per connection: a name reference of 0 is followed by the
+ * name as a string and gives it the next index, any other reference n is the
+ * name at index n - 1. Both ends start from an empty table on a new connection,
+ * and the sender clears it, flagging the frame, before it grows past kMaxNames.
+ * Strings are a varint byte count and UTF-8; the relay answers each frame with kAck.
+ */
+class NewRelicRelayCodec {
+
+	static final byte kAck = 1;
+
+	private static final byte kVersion = 1;
+	private static final byte kFlagResetNames = 1;
+	private static final byte kPlainValue = 0;
+	private static final byte kTimeslice = 1;
+	private static final int kMaxNames = 65536;
+	private static final Charset kUtf8 = Charset.forName("UTF-8");
+
+	/**
+	 * Writes frames into a reusable buffer. Not thread-safe; one per connection.
+	 */
+	static class Encoder {
+		private final HashMap<String, Integer> names = new HashMap<String, Integer>();
+		private byte[] buffer = new byte[64 * 1024];
+		private int length;
+
+		void encode(String component, String proctype, int duration, NewRelicBatch batch, int from, int to) {
+			length = 4;
+			boolean resetNames = names.size() + (to - from) > kMaxNames;
+			if (resetNames)
+				names.clear();
+			writeByte(kVersion);
+			writeByte(resetNames ? kFlagResetNames : 0);
+			writeString(component);
+			writeString(proctype);
+			writeVarint(duration);
+			writeVarint(to - from);
+			for (int i = from; i < to; i++) {
+				String name = batch.name(i);
+				Integer index = names.get(name);
+				if (index == null) {
+					writeVarint(0);
+					writeString(name);
+					names.put(name, names.size());
+				} else
+					writeVarint(index + 1);
+				if (batch.count(i) == 1) {
+					writeByte(kPlainValue);
+					writeDouble(batch.total(i));
+				} else {
+					writeByte(kTimeslice);
+					writeVarint(batch.count(i));
+					writeDouble(batch.total(i));
+					writeDouble(batch.min(i));
+					writeDouble(batch.max(i));
+					writeDouble(batch.sumOfSquares(i));
+				}
+			}
+			int frameLength = length - 4;
+			buffer[0] = (byte) (frameLength >>> 24);
+			buffer[1] = (byte) (frameLength >>> 16);
+			buffer[2] = (byte) (frameLength >>> 8);
+			buffer[3] = (byte) frameLength;
+		}
+
+		// The relay starts from an empty table on each connection
+		void reset() {
+			names.clear();
+		}
+
+		byte[] bytes() {
+			return buffer;
+		}
+
+		int length() {
+			return length;
+		}
+
+		private void writeByte(int value) {
+			ensure(1);
+			buffer[length++] = (byte) value;
+		}
+
+		private void writeVarint(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+		}
+
+		private void writeDouble(double value) {
+			ensure(8);
+			long bits = Double.doubleToRawLongBits(value);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				buffer[length++] = (byte) (bits >>> shift);
+		}
+
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(kUtf8);
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+
+		private void ensure(int extra) {
+			if (length + extra > buffer.length) {
+				byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+				System.arraycopy(buffer, 0, grown, 0, length);
+				buffer = grown;
+			}
+		}
+	}
+
+	/**
+	 * Reads the frames of one connection.
+	 */
+	static class Decoder {
+		private final ArrayList<String> names = new ArrayList<String>();
+		private String component, proctype;
+		private int duration;
+
+		/**
+		 * Decodes a frame, without its length, into a new batch.
+		 * The header fields are then available until the next call.
+		 */
+		NewRelicBatch decode(ByteBuffer frame) throws IOException {
+			try {
+				if (frame.get() != kVersion)
+					throw new IOException("unsupported frame version");
+				if ((frame.get() & kFlagResetNames) != 0)
+					names.clear();
+				component = readString(frame);
+				proctype = readString(frame);
+				duration = readVarint(frame);
+				int count = readVarint(frame);
+				if ((count < 0) || (count > frame.remaining()))
+					throw new IOException("bad metric count " + count);
+				NewRelicBatch batch = new NewRelicBatch(count);
+				for (int i = 0; i < count; i++) {
+					int reference = readVarint(frame);
+					String name;
+					if (reference == 0) {
+						name = readString(frame);
+						names.add(name);
+					} else if (reference <= names.size())
+						name = names.get(reference - 1);
+					else
+						throw new IOException("unknown name reference " + reference);
+					byte kind = frame.get();
+					if (kind == kPlainValue)
+						batch.add(name, frame.getDouble());
+					else if (kind == kTimeslice) {
+						int samples = readVarint(frame);
+						batch.addTimeslice(name, samples, frame.getDouble(), frame.getDouble(), frame.getDouble(), frame.getDouble());
+					} else
+						throw new IOException("unknown value kind " + kind);
+				}
+				return batch;
+			} catch (BufferUnderflowException e) {
+				throw new IOException("truncated frame");
+			}
+		}
+
+		String component() {
+			return component;
+		}
+
+		String proctype() {
+			return proctype;
+		}
+
+		int duration() {
+			return duration;
+		}
+
+		private static int readVarint(ByteBuffer frame) throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = frame.get();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("malformed varint");
+		}
+
+		private static String readString(ByteBuffer frame) throws IOException {
+			int length = readVarint(frame);
+			if ((length < 0) || (length > frame.remaining()))
+				throw new IOException("bad string length " + length);
+			String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, kUtf8);
+			frame.position(frame.position() + length);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,548 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.SubsetConfiguration;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Delivers batches to New Relic on a dedicated thread, so that the Metrics2
+ * publisher thread never blocks on the HTTP POST.
+ * Batches arriving within the linger time are coalesced into one request,
+ * up to the batch size. When the queue is full, new batches are dropped,
+ * after waiting up to the queue timeout for room.
+ * With more than one sender thread, the batch-size chunks of a large batch
+ * are posted in parallel; the dispatcher waits while all threads are busy,
+ * which backs up the queue. Each thread encodes into its own writer, and
+ * HttpURLConnection keeps the connections alive between requests.
+ * If a spool directory is configured, payloads the collector could not take
+ * are kept in a NewRelicSpool and replayed once deliveries succeed again.
+ * If a relay is configured, chunks go to the NewRelicRelay instead, and are
+ * only posted directly while it cannot be reached.
+ */
+class NewRelicSender implements Runnable {
+
+	private static final String kDisableResponse = "DISABLE_NEW_RELIC";
+
+	private final Context context;
+	private final ComponentData component;
+	private final String serviceUri, proctype;
+	private final BlockingQueue<NewRelicBatch> queue;
+	private final int maxPayloadBytes, threads;
+	// Changed by setBatching() when the sink's settings are reloaded
+	private volatile int batchSize;
+	private volatile long lingerMillis, queueTimeoutMillis;
+	private final int pid;
+	private final boolean compress;
+	private final ThreadLocal<NewRelicPayloadWriter> writers = new ThreadLocal<NewRelicPayloadWriter>() {
+		@Override
+		protected NewRelicPayloadWriter initialValue() {
+			return new NewRelicPayloadWriter(compress);
+		}
+	};
+	private ExecutorService workers;
+	private Semaphore idleWorkers;
+	private final Logger logger;
+	private final AtomicLong queuedMetrics = new AtomicLong();
+	private final AtomicLong sentMetrics = new AtomicLong();
+	private final AtomicLong droppedMetrics = new AtomicLong();
+	private final AtomicLong failedMetrics = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong spooledMetrics = new AtomicLong();
+	private final AtomicLong replayedMetrics = new AtomicLong();
+	private final AtomicLong relayedMetrics = new AtomicLong();
+	private final NewRelicRelayClient relay;
+	private final NewRelicSpool spool;
+	private final int replayPerDelivery;
+	// Only one thread replays at a time; it holds the lock while using the entry
+	private final ReentrantLock replayLock = new ReentrantLock();
+	private final NewRelicSpool.Entry replayEntry = new NewRelicSpool.Entry();
+	private NewRelicSinkStats stats;
+	// When the first batch of the last period with a delivered chunk was dequeued
+	private volatile long lastDeliveredAt;
+	// The period being delivered, when its first batch was dequeued, and the duration
+	// all its batches report; only used by the dispatcher thread
+	private long deliveringPeriod = -1, periodStartedAt;
+	private int periodDuration;
+	private volatile boolean disabled;
+
+	NewRelicSender(Context context, ComponentData component, SubsetConfiguration conf) {
+		this.context = context;
+		this.component = component;
+		this.serviceUri = conf.getString("collectoruri", context.getServiceURI());
+		this.proctype = conf.getString("proctype", NewRelicMetrics.kDefaultAgentName);
+		this.queue = new ArrayBlockingQueue<NewRelicBatch>(conf.getInt("queuesize", NewRelicMetrics.kDefaultQueueSize));
+		this.batchSize = conf.getInt("batchsize", NewRelicMetrics.kDefaultBatchSize);
+		this.lingerMillis = conf.getLong("batchlinger", NewRelicMetrics.kDefaultBatchLingerMillis);
+		this.queueTimeoutMillis = conf.getLong("queuetimeout", 0);
+		this.maxPayloadBytes = conf.getInt("maxpayloadbytes", NewRelicMetrics.kDefaultMaxPayloadBytes);
+		this.threads = Math.max(1, conf.getInt("senders", 1));
+		this.pid = getPid();
+		this.compress = conf.getBoolean("compress", false);
+		this.logger = Context.getLogger();
+		this.spool = createSpool(conf);
+		this.replayPerDelivery = conf.getInt("spoolreplay", NewRelicMetrics.kDefaultSpoolReplay);
+		this.relay = createRelay(conf);
+	}
+
+	private NewRelicSpool createSpool(SubsetConfiguration conf) {
+		String directory = conf.getString("spooldir");
+		if ((directory == null) || directory.isEmpty())
+			return null;
+		try {
+			return new NewRelicSpool(new File(directory),
+					conf.getInt("spoolsegmentsize", NewRelicMetrics.kDefaultSpoolSegmentSize),
+					conf.getLong("spoolmaxbytes", NewRelicMetrics.kDefaultSpoolMaxBytes));
+		} catch (IOException e) {
+			logger.severe("New Relic Sink: cannot open spool " + directory + ", undelivered metrics will be lost - " + e);
+			return null;
+		}
+	}
+
+	private NewRelicRelayClient createRelay(SubsetConfiguration conf) {
+		String address = conf.getString("relay", "");
+		if (address.isEmpty())
+			return null;
+		try {
+			return new NewRelicRelayClient(address);
+		} catch (IllegalArgumentException e) {
+			logger.severe("New Relic Sink: bad relay address " + address + ", posting directly to New Relic - " + e);
+			return null;
+		}
+	}
+
+	// Must be called before start()
+	void setStats(NewRelicSinkStats stats) {
+		this.stats = stats;
+	}
+
+	void start() {
+		if (threads > 1) {
+			idleWorkers = new Semaphore(threads);
+			workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "NewRelicSink-sender-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		Thread thread = new Thread(this, "NewRelicSink-sender");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a batch for delivery without blocking.
+	 * @return false if the queue was full and the batch was dropped
+	 */
+	boolean offer(NewRelicBatch batch) {
+		// Once queued, a sender thread may already be folding the batch
+		int size = batch.size();
+		if (size == 0)
+			return true;
+		if (!disabled && offerWithTimeout(batch)) {
+			queuedMetrics.addAndGet(size);
+			return true;
+		}
+		droppedMetrics.addAndGet(size);
+		return false;
+	}
+
+	private boolean offerWithTimeout(NewRelicBatch batch) {
+		long timeoutMillis = queueTimeoutMillis;
+		if (timeoutMillis <= 0)
+			return queue.offer(batch);
+		try {
+			return queue.offer(batch, timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	void setBatching(int batchSize, long lingerMillis, long queueTimeoutMillis) {
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerMillis = lingerMillis;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	long getQueuedMetrics() {
+		return queuedMetrics.get();
+	}
+
+	long getSentMetrics() {
+		return sentMetrics.get();
+	}
+
+	long getDroppedMetrics() {
+		return droppedMetrics.get();
+	}
+
+	long getFailedMetrics() {
+		return failedMetrics.get();
+	}
+
+	long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	long getSpooledMetrics() {
+		return spooledMetrics.get();
+	}
+
+	long getReplayedMetrics() {
+		return replayedMetrics.get();
+	}
+
+	long getRelayedMetrics() {
+		return relayedMetrics.get();
+	}
+
+	int getSpoolPending() {
+		return (spool == null) ? 0 : spool.getPendingPayloads();
+	}
+
+	long getSpoolDropped() {
+		return (spool == null) ? 0 : spool.getDroppedPayloads();
+	}
+
+	@Override
+	public void run() {
+		NewRelicBatch pending = null;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				NewRelicBatch batch = (pending != null) ? pending : queue.take();
+				pending = null;
+				int batchSize = this.batchSize;
+				long deadline = System.currentTimeMillis() + lingerMillis;
+				while (batch.size() < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					NewRelicBatch next = (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null)
+						break;
+					if ((batch.size() + next.size() > batchSize) || (next.period() != batch.period())) {
+						pending = next;
+						break;
+					}
+					batch.addAll(next);
+				}
+				batch.fold();
+				long now = System.currentTimeMillis();
+				if ((batch.period() < 0) || (batch.period() != deliveringPeriod)) {
+					deliveringPeriod = batch.period();
+					periodStartedAt = now;
+					periodDuration = getDuration(now);
+				}
+				Delivery delivery = new Delivery(periodStartedAt, periodDuration);
+				try {
+					// A single batch may still exceed the batch size, e.g. a whole aggregated period
+					for (int from = 0; from < batch.size(); from += batchSize)
+						dispatch(batch, from, Math.min(from + batchSize, batch.size()), delivery);
+				} finally {
+					delivery.done(false);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				logger.severe("New Relic Sink: delivery failed - " + e);
+			}
+		}
+	}
+
+	/**
+	 * The chunks of one dequeued batch. They report the duration of the batch's period,
+	 * the time since the last delivered period; the start of this one is only taken as
+	 * delivered once all chunks are done.
+	 */
+	private class Delivery {
+		final long startedAt;
+		final int duration;
+		// Chunks not done yet, plus one for the dispatcher until it has dispatched them all
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private volatile boolean delivered;
+
+		Delivery(long startedAt, int duration) {
+			this.startedAt = startedAt;
+			this.duration = duration;
+		}
+
+		void add() {
+			pending.incrementAndGet();
+		}
+
+		void done(boolean chunkDelivered) {
+			if (chunkDelivered)
+				delivered = true;
+			if ((pending.decrementAndGet() == 0) && delivered)
+				lastDeliveredAt = startedAt;
+		}
+	}
+
+	// Seconds covered by the payloads of a period, as the SDK reports it
+	private int getDuration(long now) {
+		long previousDelivery = lastDeliveredAt;
+		return (previousDelivery == 0) ? NewRelicMetrics.kMetricInterval
+				: (int) Math.max(1, Math.round((now - previousDelivery) / 1000.0));
+	}
+
+	// Hands a chunk to an idle sender thread, waiting for one if all are busy.
+	// The batch is not modified once its chunks have been dispatched.
+	private void dispatch(final NewRelicBatch batch, final int from, final int to, final Delivery delivery)
+			throws InterruptedException {
+		delivery.add();
+		if (workers == null) {
+			boolean delivered = false;
+			try {
+				delivered = deliver(batch, from, to, delivery.duration);
+			} finally {
+				delivery.done(delivered);
+			}
+			return;
+		}
+		try {
+			idleWorkers.acquire();
+		} catch (InterruptedException e) {
+			delivery.done(false);
+			throw e;
+		}
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean delivered = false;
+				try {
+					delivered = deliver(batch, from, to, delivery.duration);
+				} catch (RuntimeException e) {
+					logger.severe("New Relic Sink: delivery failed - " + e);
+				} finally {
+					delivery.done(delivered);
+					idleWorkers.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Delivers a batch on the calling thread, as the metrics of one period.
+	 */
+	void deliver(NewRelicBatch batch, int from, int to) {
+		long now = System.currentTimeMillis();
+		if (deliver(batch, from, to, getDuration(now)))
+			lastDeliveredAt = now;
+	}
+
+	/**
+	 * @param duration seconds covered by the period the chunk belongs to
+	 * @return true if any of the chunk was delivered
+	 */
+	private boolean deliver(NewRelicBatch batch, int from, int to, int duration) {
+		if (relay != null) {
+			int frameBytes = relay.send(component.name, proctype, duration, batch, from, to);
+			if (frameBytes >= 0) {
+				sentMetrics.addAndGet(to - from);
+				sentBytes.addAndGet(frameBytes);
+				relayedMetrics.addAndGet(to - from);
+				replaySpool();
+				return true;
+			}
+			if (frameBytes == NewRelicRelayClient.kUnacknowledged) {
+				// The relay may have merged it already: posting it as well could count it twice
+				failedMetrics.addAndGet(to - from);
+				return false;
+			}
+		}
+		NewRelicPayloadWriter writer = writers.get();
+		try {
+			writer.begin(context.agentData.host, pid, context.agentData.version);
+			writer.component(component.name, component.guid, duration, batch, from, to);
+			writer.end();
+		} catch (IOException e) {
+			failedMetrics.addAndGet(to - from);
+			logger.severe("New Relic Sink: could not encode payload - " + e);
+			return false;
+		}
+		if ((writer.length() > maxPayloadBytes) && (to - from > 1)) {
+			// Too large for the collector: send it in halves
+			int middle = (from + to) >>> 1;
+			boolean delivered = deliver(batch, from, middle, duration);
+			return deliver(batch, middle, to, duration) || delivered;
+		}
+		return deliverPayload(writer, to - from);
+	}
+
+	/**
+	 * Posts a completed payload, spooling it if the collector cannot take it now.
+	 * @return true if the collector accepted it
+	 */
+	boolean deliverPayload(NewRelicPayloadWriter writer, int metrics) {
+		int status = send(writer.bytes(), writer.length(), writer.isCompressed());
+		if (status == HttpURLConnection.HTTP_OK) {
+			sentMetrics.addAndGet(metrics);
+			sentBytes.addAndGet(writer.length());
+			replaySpool();
+			return true;
+		}
+		if (!(isRetriable(status) && spool(writer, metrics)))
+			failedMetrics.addAndGet(metrics);
+		return false;
+	}
+
+	/**
+	 * @return the HTTP status, or -1 if the collector could not be reached
+	 */
+	private int send(byte[] body, int length, boolean compressed) {
+		long start = System.nanoTime();
+		try {
+			return post(body, length, compressed);
+		} catch (IOException e) {
+			logger.severe("New Relic Sink: An error occurred communicating with the New Relic service - " + e);
+			return -1;
+		} finally {
+			if (stats != null)
+				stats.addDeliver(System.nanoTime() - start);
+		}
+	}
+
+	private static boolean isRetriable(int status) {
+		return (status < 0) || (status >= HttpURLConnection.HTTP_INTERNAL_ERROR);
+	}
+
+	// Keeps the payload just written, so it can be replayed later.
+	private boolean spool(NewRelicPayloadWriter writer, int metrics) {
+		if ((spool == null) || disabled)
+			return false;
+		try {
+			if (!spool.append(writer.bytes(), writer.length(), metrics, writer.isCompressed()))
+				return false;
+			spooledMetrics.addAndGet(metrics);
+			return true;
+		} catch (IOException e) {
+			logger.severe("New Relic Sink: could not spool undelivered metrics - " + e);
+			return false;
+		}
+	}
+
+	// Replays a few spooled payloads, oldest first, after each successful delivery,
+	// so a backlog drains without flooding a collector that has just come back.
+	// The collector attributes replayed timeslices to the time it receives them.
+	private void replaySpool() {
+		if ((spool == null) || !replayLock.tryLock())
+			return;
+		try {
+			for (int i = 0; (i < replayPerDelivery) && !disabled && spool.peek(replayEntry); i++) {
+				int status = send(replayEntry.bytes, replayEntry.length, replayEntry.compressed);
+				if (isRetriable(status))
+					return;
+				if (status == HttpURLConnection.HTTP_OK) {
+					sentMetrics.addAndGet(replayEntry.metrics);
+					sentBytes.addAndGet(replayEntry.length);
+					replayedMetrics.addAndGet(replayEntry.metrics);
+				} else
+					failedMetrics.addAndGet(replayEntry.metrics);
+				spool.remove(replayEntry);
+			}
+		} finally {
+			replayLock.unlock();
+		}
+	}
+
+	/**
+	 * POSTs a payload and reads the whole response, so the connection can be kept alive.
+	 * @return the HTTP status
+	 */
+	private int post(byte[] body, int length, boolean compressed) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serviceUri).openConnection();
+		connection.setConnectTimeout(NewRelicMetrics.kConnectTimeoutMillis);
+		connection.setReadTimeout(NewRelicMetrics.kReadTimeoutMillis);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(length);
+		connection.setRequestProperty("X-License-Key", context.licenseKey);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("Accept", "application/json");
+		if (compressed)
+			connection.setRequestProperty("Content-Encoding", "gzip");
+
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body, 0, length);
+		} finally {
+			out.close();
+		}
+
+		int status = connection.getResponseCode();
+		String response = readResponse(connection, status);
+		if (status == HttpURLConnection.HTTP_OK)
+			logger.fine("New Relic Sink: Server response: " + status + ", " + response);
+		else if (status == HttpURLConnection.HTTP_UNAVAILABLE)
+			logger.fine("New Relic Sink: Collector temporarily unavailable...continuing");
+		else if ((status == HttpURLConnection.HTTP_FORBIDDEN) && response.contains(kDisableResponse)) {
+			// The SDK exits the JVM here; a Hadoop daemon must keep running, so only stop sending.
+			disabled = true;
+			queue.clear();
+			logger.severe("New Relic Sink: Agent has been disabled remotely by New Relic. Metrics will no longer be sent.");
+		} else
+			logger.info("New Relic Sink: Failed server response: " + status + ", " + response);
+		return status;
+	}
+
+	private static String readResponse(HttpURLConnection connection, int status) throws IOException {
+		InputStream in = (status < HttpURLConnection.HTTP_BAD_REQUEST) ? connection.getInputStream() : connection.getErrorStream();
+		if (in == null)
+			return "";
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		try {
+			byte[] chunk = new byte[1024];
+			for (int read = in.read(chunk); read >= 0; read = in.read(chunk))
+				response.write(chunk, 0, read);
+		} finally {
+			in.close();
+		}
+		return response.toString("UTF-8");
+	}
+
+	static int getPid() {
+		// RuntimeMXBean name is "pid@hostname" on the JVMs Hadoop runs on
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.indexOf('@')));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Watches the sink's settings file ("settingsfile") and builds a new
+ * NewRelicSinkSettings snapshot whenever it is written, on a thread of its own,
+ * so the metrics thread never reads files: it picks up the latest snapshot
+ * once per period, from a volatile field.
+ *
+ * The file holds sink settings without the "*.sink.newrelic." prefix, e.g.
+ * "debug=true", and overrides the same settings from hadoop-metrics2.properties;
+ * removing the file restores those. A file that cannot be read leaves the
+ * current settings in place.
+ */
+class NewRelicSettingsWatcher implements Runnable {
+
+	// Editors write a file in several steps; they are read once it settles
+	private static final long kSettleMillis = 200;
+
+	private final Configuration base;
+	private final File file;
+	private final Logger logger;
+	private volatile NewRelicSinkSettings latest;
+	private WatchService watchService;
+
+	/**
+	 * Reads the file once, before returning.
+	 * @param base the sink's settings from hadoop-metrics2.properties
+	 */
+	NewRelicSettingsWatcher(Configuration base, File file) {
+		this.base = base;
+		this.file = file.getAbsoluteFile();
+		this.logger = Context.getLogger();
+		latest = load();
+		if (latest == null)
+			latest = new NewRelicSinkSettings(base);
+	}
+
+	NewRelicSinkSettings latest() {
+		return latest;
+	}
+
+	void start() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			logger.severe("New Relic Sink: cannot watch " + file + ", settings will not be reloaded - " + e);
+			return;
+		}
+		Thread thread = new Thread(this, "NewRelicSink-settings");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("New Relic Sink: Reloading settings from " + file + " when it changes.");
+	}
+
+	@Override
+	public void run() {
+		Path name = file.toPath().getFileName();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				boolean changed = false;
+				do {
+					for (WatchEvent<?> event : key.pollEvents())
+						changed |= (event.kind() == StandardWatchEventKinds.OVERFLOW) || name.equals(event.context());
+					key.reset();
+					key = changed ? watchService.poll(kSettleMillis, TimeUnit.MILLISECONDS) : null;
+				} while (key != null);
+				if (changed)
+					reload();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	void stop() {
+		try {
+			if (watchService != null)
+				watchService.close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	void reload() {
+		NewRelicSinkSettings loaded = load();
+		if (loaded != null) {
+			latest = loaded;
+			logger.info("New Relic Sink: settings reloaded from " + file + (loaded.debug ? ", DEBUG enabled." : "."));
+		}
+	}
+
+	/**
+	 * @return the settings from the file over the base settings, or null if the file cannot be read
+	 */
+	private NewRelicSinkSettings load() {
+		if (!file.exists())
+			return new NewRelicSinkSettings(base);
+		try {
+			CompositeConfiguration conf = new CompositeConfiguration();
+			// The first configuration holding a key gives its value
+			conf.addConfiguration(new PropertiesConfiguration(file));
+			conf.addConfiguration(base);
+			return new NewRelicSinkSettings(conf);
+		} catch (ConfigurationException e) {
+			logger.severe("New Relic Sink: could not read settings from " + file + ", keeping the current ones - " + e);
+		} catch (RuntimeException e) {
+			logger.severe("New Relic Sink: bad settings in " + file + ", keeping the current ones - " + e);
+		}
+		return null;
+	}
+}
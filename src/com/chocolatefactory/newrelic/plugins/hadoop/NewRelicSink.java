@@ -4,11 +4,14 @@ package com.chocolatefactory.newrelic.plugins.hadoop;
  * @author Seth Schwartzman
  */
 
+import java.io.File;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.configuration.SubsetConfiguration;
@@ -16,29 +19,65 @@ import org.apache.hadoop.metrics2.AbstractMetric;
 import org.apache.hadoop.metrics2.MetricsRecord;
 import org.apache.hadoop.metrics2.MetricsSink;
 import org.apache.hadoop.metrics2.MetricsTag;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 
 import com.newrelic.metrics.publish.binding.ComponentData;
 import com.newrelic.metrics.publish.binding.Context;
-import com.newrelic.metrics.publish.binding.Request;
 
+/**
+ * Metrics2 calls putMetrics() and flush() of a sink from a single thread, the
+ * sink's own. That thread is the only one to read or write the sink's state:
+ * the metric registry, the batch, the aggregator, percentiles and the current
+ * NewRelicSinkPeriod. Other threads only get what it hands over: batches to
+ * the sender threads through the sender's queue, lines to the debug writer
+ * through its queue, and counts to NewRelicSinkStats, whose metrics are safe
+ * to read from JMX. The settings watcher hands settings the other way, as an
+ * immutable snapshot taken up at the start of a period. The metrics thread
+ * never waits on these threads, unless "queuetimeout" is set.
+ *
+ * putMetrics() and flush() also hold a lock of their own, which Metrics2
+ * never contends. A caller putting records from several threads (e.g. a
+ * harness) is then serialized rather than corrupting the registry.
+ */
 public class NewRelicSink implements MetricsSink {
 
-	private boolean debugEnabled, getGroupings;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private boolean senderStarted;
 	private char div;
+	private int batchSize, cacheMaxEntries, cacheIdlePeriods;
+	private long cappedMetrics, latestTimestamp;
 	private String hadoopProcType, categoryName, deltaName, overviewName, nrLicenseKey;
 	private Logger logger;
 	private Context context;
 	private ComponentData component;
-	private HashMap<Integer, String> metricBaseNames;
+	private NewRelicSender sender;
+	private NewRelicBatch batch;
+	private NewRelicAggregator aggregator;
+	private NewRelicMetricRegistry registry;
+	// Replaced only between periods, by the metrics thread
+	private NewRelicSinkSettings settings;
+	private NewRelicSettingsWatcher settingsWatcher;
+	private NewRelicDebugWriter debugWriter;
+	// Metrics of the record being written to the debug file; null if it is not written
+	private NewRelicBatch debugMetrics;
+	private NewRelicSinkStats stats;
+	private NewRelicPercentiles percentiles;
 	private HashMap<String, Integer> metricGroupings;
-	private HashMap<String, String[]> metricNames;
-	private HashMap<String, Float> oldMetricValues;
-	private HashMap<String, Float> summaryMetrics;
+	// Counts and overview totals of the period being put
+	private NewRelicSinkPeriod current;
+	// Overview delta types (rates of counters, changes of gauges) by summary slot, and the
+	// names their totals are reported under
+	private HashMap<String, Integer> summarySlots;
+	private ArrayList<String> summaryTypes, summaryMetricNames;
+
+	// Shared by all metrics that are not reported
+	private static final String[] kNoPaths = new String[4];
+
+	static final String kSummaryMetricPrefix = NewRelicMetrics.kCategoryMetricName + NewRelicMetrics.kMetricTreeDivider
+			+ NewRelicMetrics.kOverviewMetricName + NewRelicMetrics.kMetricTreeDivider + NewRelicMetrics.kSummaryMetricName + " ";
 
 	@Override
 	public void init(SubsetConfiguration conf) {
-		debugEnabled = false;
-		getGroupings = false;
 		div = NewRelicMetrics.kMetricTreeDivider;
 		categoryName = NewRelicMetrics.kCategoryMetricName;
 		deltaName = NewRelicMetrics.kDeltaMetricName;
@@ -66,32 +105,88 @@ public class NewRelicSink implements MetricsSink {
 		context = buildContext(nrLicenseKey, conf.getString("hostname", ""), hadoopProcType);
 		component = context.getComponents().next();
 		
-		if (conf.getString("debug", "false").equals("true")) {
-			debugEnabled = true;
+		if (conf.containsKey("settingsfile")) {
+			// Settings that can be changed while the daemon runs
+			settingsWatcher = new NewRelicSettingsWatcher(conf, new File(conf.getString("settingsfile")));
+			settings = settingsWatcher.latest();
+		} else
+			settings = new NewRelicSinkSettings(conf);
+
+		if (settings.debug)
 			logger.info("New Relic Sink: DEBUG enabled.");
-		}
+		updateDebugWriter(settings);
 		
-		if (conf.getString("nrgroupings", "false").equals("true")) {
-			getGroupings = true;
+		if (settings.groupings) {
 			metricGroupings = new HashMap<String, Integer>();
 			logger.info("New Relic Sink: Getting Metric Groupings");
 		}
 		
-		metricBaseNames = new HashMap<Integer, String>();
-		metricNames = new HashMap<String, String[]>();
-		oldMetricValues = new HashMap<String, Float>();
-		summaryMetrics = new HashMap<String, Float>();	
+		sender = createSender(context, component, conf);
+		sender.setBatching(settings.batchSize, settings.batchLingerMillis, settings.queueTimeoutMillis);
+		batchSize = sender.getBatchSize();
+		batch = new NewRelicBatch(0);
+		if (settings.aggregate) {
+			aggregator = new NewRelicAggregator();
+			logger.info("New Relic Sink: Aggregating metrics per period.");
+		}
+		if (conf.getBoolean("stats", true)) {
+			stats = new NewRelicSinkStats(sender, NewRelicMetrics.kMetricInterval);
+			sender.setStats(stats);
+			try {
+				DefaultMetricsSystem.instance().register(NewRelicSinkStats.kSourceName, "New Relic sink statistics", stats);
+			} catch (RuntimeException e) {
+				logger.warning("New Relic Sink: could not register sink statistics - " + e);
+			}
+		}
+		if (!settings.debug)
+			startSender();
+
+		cacheMaxEntries = conf.getInt("cachemaxentries", NewRelicMetrics.kDefaultCacheMaxEntries);
+		cacheIdlePeriods = conf.getInt("cacheidleperiods", NewRelicMetrics.kDefaultCacheIdlePeriods);
+		registry = new NewRelicMetricRegistry(cacheMaxEntries, cacheIdlePeriods);
+		if (settings.suppress)
+			logger.info("New Relic Sink: Holding back unchanged metrics for up to " + settings.suppressHeartbeat + " periods.");
+		if (conf.getBoolean("percentiles", false)) {
+			try {
+				percentiles = new NewRelicPercentiles(conf);
+				logger.info("New Relic Sink: Reporting percentiles of latency metrics.");
+			} catch (RuntimeException e) {
+				logger.severe("New Relic Sink: percentiles are not reported, bad settings - " + e);
+			}
+		}
+		summarySlots = new HashMap<String, Integer>();
+		summaryTypes = new ArrayList<String>();
+		summaryMetricNames = new ArrayList<String>();
+		for (String overviewType : NewRelicMetrics.HadoopOverviewMetrics) {
+			getSummarySlot(getDeltaType(overviewType, true));
+			getSummarySlot(getDeltaType(overviewType, false));
+		}
+		current = new NewRelicSinkPeriod(0, summaryTypes.size());
+		if (settingsWatcher != null)
+			settingsWatcher.start();
 	}
 
-	@SuppressWarnings("unused")
 	@Override
 	public void putMetrics(MetricsRecord record) {
-		Request request = new Request(context);
+		writeLock.lock();
+		try {
+			putRecord(record);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private void putRecord(MetricsRecord record) {
+		long start = System.nanoTime();
 		String metricBaseName;
-		int recordHashCode = record.tags().hashCode();
+		if ((current.records == 0) && (settingsWatcher != null))
+			takeSettings(settingsWatcher.latest());
+		int recordId = registry.findRecord(record);
+		latestTimestamp = Math.max(latestTimestamp, record.timestamp());
 		
-		if(metricBaseNames.containsKey(recordHashCode))
-			metricBaseName = metricBaseNames.get(recordHashCode);	
+		if(recordId >= 0)
+			metricBaseName = registry.recordBaseName(recordId);
 		else {
 			metricBaseName = getMetricBaseName(record, "");
 			String metricNameTags = "", hostname = "", port = "";
@@ -133,102 +228,341 @@ public class NewRelicSink implements MetricsSink {
 			if (!metricNameTags.isEmpty())
 				metricBaseName = metricBaseName + div + metricNameTags;
 			
-			metricBaseNames.put(recordHashCode, metricBaseName);
+			recordId = registry.addRecord(record, metricBaseName);
 		} 
+		if ((debugWriter != null) && isDebugSampled(metricBaseName))
+			debugMetrics = new NewRelicBatch(0);
 		
-		String[] recordMetricBases = new String[] {
-				// Original metric
-				categoryName + div + metricBaseName,
-				// Delta Metric - grouped separately under 'delta'
-				categoryName + div + deltaName + div + metricBaseName,
-				// Overview Dashboard Metrics - grouped separately under 'overview' and 'overview_delta'
-				categoryName + div + overviewName + div + metricBaseName,
-				categoryName + div + overviewName + "_" + deltaName + div + metricBaseName,
-				// Summary Metrics - universally named (no context)
-				categoryName + div + overviewName
-		};
-		
-		// When iterating through metrics, if it finds a metric to be used in summary (one of the "overview metrics"), 
-		// it will set this to true and initialize the summary metrics to be aggregated.
-		Boolean hasOverview = false;
-				
 		for (AbstractMetric metric : record.metrics()) {			
-			if((metric.value() == null) || (metric.name() == null) || 
-				metric.name().isEmpty() || metric.value().toString().isEmpty()) {
-				// NOT skipping "imax" and "imin" metrics,  which are constant and rather large
-				// || metric.name().contains("_imin_") || metric.name().contains("_imax_")) {
+			if((metric.value() == null) || (metric.name() == null) || metric.name().isEmpty()) {
+				// "imax" and "imin" metrics, which are constant and rather large, can be
+				// skipped with a filter rule (see hadoop-metrics2.properties)
 				continue;
 			}
 			
-			String metricName, metricType;
-			String metricHashCode = recordHashCode + "" + metric.hashCode();
-			Float metricValue = adjustMetricValue(metric).floatValue();
+			int metricId = registry.findMetric(recordId, metric);
 					
-			if(metricNames.containsKey(metricHashCode)) {
-				metricName = metricNames.get(metricHashCode)[0];
-				metricType = metricNames.get(metricHashCode)[1];
-			} else {
-				metricName = getMetricName(metric);
-				metricType = getMetricType(metric);
-				
-				metricNames.put(metricHashCode, new String[]{metricName, metricType});
-
-				if (debugEnabled && getGroupings) {
-					addMetricGroup(getMetricBaseName(record, categoryName), metricType);
-					addMetricGroup(getMetricBaseName(record, categoryName + div + deltaName), metricType);
+			if(metricId < 0) {
+				// First time this metric is seen: filter it and build its full New Relic names once.
+				NewRelicMetricTable.MetricClass metricClass = settings.metricTable.classify(metric);
+				boolean isOverview = metricClass.overview && record.name().equalsIgnoreCase(hadoopProcType);
+				NewRelicMetricFilter.Rule rule = settings.filter.match(record.context(), record.name(), metric.name(), metricClass.unit);
+				metricId = registry.addMetric(recordId, metric, metricClass,
+						getReportedPaths(rule, metric, metricBaseName, metricClass, isOverview),
+						rule.periods, (rule.suppress != null) ? rule.suppress : settings.suppress);
+				if ((percentiles != null) && (registry.metricPaths(metricId) != kNoPaths)
+						&& percentiles.matches(metric.name()))
+					registry.setPercentileSeries(metricId, percentiles.series(categoryName + div
+							+ NewRelicPercentiles.kPercentilesMetricName + div + metricBaseName + getMetricName(metric),
+							metricClass.unit));
+
+				if (settings.debug && settings.groupings) {
+					addMetricGroup(getMetricBaseName(record, categoryName), metricClass.unit);
+					addMetricGroup(getMetricBaseName(record, categoryName + div + deltaName),
+							getDeltaType(metricClass.unit, metricClass.counter));
 				}
 			}						
+			String[] metricPaths = registry.metricPaths(metricId);
+			if (metricPaths == kNoPaths)
+				continue;
+			String metricType = registry.metricType(metricId);
+			double metricValue = metric.value().doubleValue() * registry.metricScale(metricId);
+			long timestamp = record.timestamp();
 			
-			// Initialize delta to 0
-			// If old metric value exists, use it to compute delta. 
-			// In any case, set oldValue to use for next delta.
-			Float deltaMetricValue = (float) 0;
-			Float oldMetricValue = oldMetricValues.get(metricHashCode);
-			if ((oldMetricValue != null) && (metricValue > oldMetricValue))
-					deltaMetricValue = metricValue - oldMetricValue;	
-						
-			oldMetricValues.put(metricHashCode, metricValue);
+			// Every value goes into the percentiles, including those held back below
+			NewRelicPercentiles.Series series = registry.percentileSeries(metricId);
+			if (series != null)
+				percentiles.add(series, metricValue, timestamp);
 			
-			addMetric(request, recordMetricBases[0] + metricName, metric.name(), metricType, metricValue);
-			addMetric(request, recordMetricBases[1] + metricName, metric.name(), metricType, deltaMetricValue);
+			// Counters are reported under 'delta' as a per-second rate over the time between
+			// the two records, so a late or missed period does not skew them; gauges as their
+			// change since the previous record. Nothing is reported until there are two values.
+			double deltaMetricValue = 0;
+			boolean hasDelta = false;
+			if (!registry.hasPreviousValue(metricId))
+				registry.setPreviousValue(metricId, metricValue, timestamp);
+			else {
+				double change = getChange(metricId, metricValue, registry.previousValue(metricId));
+				double delta = getDelta(metricId, change, registry.previousTimestamp(metricId), timestamp);
+				if (!Double.isNaN(delta)) {
+					deltaMetricValue = delta;
+					hasDelta = true;
+					if (registry.isAdaptive(metricId))
+						registry.addHeldChange(metricId, change);
+					registry.setPreviousValue(metricId, metricValue, timestamp);
+				} else if (timestamp < registry.previousTimestamp(metricId)) {
+					// The clock went back: start again from this record
+					registry.setPreviousValue(metricId, metricValue, timestamp);
+				}
+			}
+			
+			// Overview deltas add up over all records of the period, into one summary value per unit
+			// and kind: counter rates and gauge changes do not add up with each other
+			if(metricPaths[NewRelicMetricRegistry.kOverviewPath] != null)
+				current.addSummary(getSummarySlot(getDeltaType(metricType, registry.isCounter(metricId))),
+						deltaMetricValue);
 			
-			if(record.name().equalsIgnoreCase(hadoopProcType) && NewRelicMetrics.HadoopOverviewMetrics.contains(metricType)) {
-				// This record will fill the summary metrics, as it has overview metrics.
-				// If first metric of this record to have an overview metric, initializes summary metrics.
-				if (!hasOverview) {
-					hasOverview = true;
-					Iterator<String> initOverview = NewRelicMetrics.HadoopOverviewMetrics.iterator();
-					while (initOverview.hasNext()) {
-						summaryMetrics.put(initOverview.next(), (float) 0);
+			// Metrics with a reporting interval or suppression are reported against what they last
+			// reported, so the delta of a report covers the periods held back before it: the sum
+			// of their changes, which survives a counter reset in between.
+			if (registry.isAdaptive(metricId)) {
+				if (registry.hasReported(metricId)) {
+					double delta = getDelta(metricId, registry.heldChange(metricId),
+							registry.reportedTimestamp(metricId), timestamp);
+					if (!isReportDue(metricId, metricValue, delta)) {
+						current.heldMetrics++;
+						continue;
 					}
-					summaryMetrics.put(metricType, deltaMetricValue);
-				} else
-					summaryMetrics.put(metricType, summaryMetrics.get(metricType) + deltaMetricValue);
-					
-				addMetric(request, recordMetricBases[2] + metricName, metric.name(), metricType, metricValue);
-				addMetric(request, recordMetricBases[3] + metricName, metric.name(), metricType, deltaMetricValue);		
-			}	
-		}
-		
-		// Get summary metrics, reset each one after output.
-		for(Entry<String, Float> summaryMetric : summaryMetrics.entrySet()) {
-			addMetric(request, recordMetricBases[4] + div + "total " + summaryMetric.getKey(), summaryMetric.getKey(), summaryMetric.getKey(), summaryMetric.getValue());
+					hasDelta = !Double.isNaN(delta);
+					deltaMetricValue = hasDelta ? delta : 0;
+				}
+				registry.setReported(metricId, metricValue, hasDelta ? deltaMetricValue : Double.NaN, timestamp);
+			}
+			
+			if (metricPaths[NewRelicMetricRegistry.kRawPath] != null)
+				addMetric(metricPaths[NewRelicMetricRegistry.kRawPath], metric.name(), metricType, metricValue);
+			if (hasDelta && (metricPaths[NewRelicMetricRegistry.kDeltaPath] != null))
+				addMetric(metricPaths[NewRelicMetricRegistry.kDeltaPath], metric.name(), metricType, deltaMetricValue);
+			if (metricPaths[NewRelicMetricRegistry.kOverviewPath] != null) {
+				addMetric(metricPaths[NewRelicMetricRegistry.kOverviewPath], metric.name(), metricType, metricValue);
+				if (hasDelta && (metricPaths[NewRelicMetricRegistry.kOverviewDeltaPath] != null))
+					addMetric(metricPaths[NewRelicMetricRegistry.kOverviewDeltaPath], metric.name(), metricType, deltaMetricValue);
+			}
 		}
 		
-		if(debugEnabled) {
+		if (debugMetrics != null) {
+			// The writer thread gets a copy of the tags, not the record's own collection
+			debugWriter.offer(new NewRelicDebugWriter.Line(record.timestamp(), current.number, record.context(),
+					record.name(), new ArrayList<MetricsTag>(record.tags()), debugMetrics));
+			debugMetrics = null;
+		} else if (settings.debug && (debugWriter == null))
 			logger.info("Debug is enabled on New Relic Hadoop Extension. Metrics will not be sent.");
-			if(getGroupings) {
-				logger.info("Outputting metric groupings from the current Metrics Record.");
-				for (Map.Entry<String, Integer> grouping : metricGroupings.entrySet()) { 
-					logger.info(grouping.getKey() + " : " + grouping.getValue()); 
-				}
-			}
-		} else
-			request.deliver();
+		current.records++;
+		if (stats != null)
+			stats.addPutMetrics(System.nanoTime() - start);
+	}
+
+	/**
+	 * Delta of a metric from its change since an earlier record (see getChange): a per-second
+	 * rate for counters, or the change itself for gauges.
+	 * @return NaN for a counter if no time has passed
+	 */
+	private double getDelta(int metricId, double change, long earlierTimestamp, long timestamp) {
+		if (!registry.isCounter(metricId))
+			return change;
+		long elapsedMillis = timestamp - earlierTimestamp;
+		if (elapsedMillis <= 0)
+			return Double.NaN;
+		return change * 1000 / elapsedMillis;
+	}
+
+	// Increase of a counter, treating a decrease as a reset (e.g. the daemon restarted), or
+	// difference of a gauge
+	private double getChange(int metricId, double value, double earlierValue) {
+		if (!registry.isCounter(metricId))
+			return value - earlierValue;
+		return (value >= earlierValue) ? value - earlierValue : value;
+	}
+
+	/**
+	 * A metric is due once its reporting interval has passed. If it is suppressible, it is then
+	 * still held back until its value or delta moves by more than the epsilon, relative to what
+	 * it last reported (absolute below 1), or until the heartbeat.
+	 */
+	private boolean isReportDue(int metricId, double value, double delta) {
+		int periods = registry.periodsSinceReport(metricId);
+		if (periods < registry.reportInterval(metricId))
+			return false;
+		if (!registry.isSuppressible(metricId) || (periods >= settings.suppressHeartbeat))
+			return true;
+		return hasChanged(value, registry.reportedValue(metricId)) || hasChanged(delta, registry.reportedDelta(metricId));
+	}
+
+	private boolean hasChanged(double value, double reported) {
+		if (Double.isNaN(value))
+			return false;
+		if (Double.isNaN(reported))
+			return true;
+		return Math.abs(value - reported) > settings.suppressEpsilon * Math.max(Math.abs(reported), 1);
+	}
+
+	/**
+	 * Applies the filter rule and the cap on distinct metric names.
+	 * @return the names to report the metric under, or kNoPaths if it is not reported
+	 */
+	private String[] getReportedPaths(NewRelicMetricFilter.Rule rule, AbstractMetric metric, String metricBaseName,
+			NewRelicMetricTable.MetricClass metricClass, boolean isOverview) {
+		if (!rule.include)
+			return kNoPaths;
+		String[] metricPaths = getMetricPaths(metricBaseName, getMetricName(metric), metricClass.unit,
+				metricClass.counter, isOverview && rule.overview);
+		if (!rule.delta) {
+			metricPaths[NewRelicMetricRegistry.kDeltaPath] = null;
+			metricPaths[NewRelicMetricRegistry.kOverviewDeltaPath] = null;
+		}
+		int maxMetricNames = settings.maxMetricNames;
+		if ((maxMetricNames > 0)
+				&& (registry.nameCount() + registry.countNewNames(metricPaths) > maxMetricNames)) {
+			if (cappedMetrics++ == 0)
+				logger.warning("New Relic Sink: reached " + maxMetricNames + " distinct metric names, new metrics are not reported.");
+			return kNoPaths;
+		}
+		return metricPaths;
+	}
+
+	// Overridden by the benchmarks to stub out delivery.
+	NewRelicSender createSender(Context context, ComponentData component, SubsetConfiguration conf) {
+		return new NewRelicSender(context, component, conf);
+	}
+
+	NewRelicMetricRegistry getRegistry() {
+		return registry;
 	}
 
 	@Override
-	public void flush() {}
+	public void flush() {
+		writeLock.lock();
+		try {
+			flushPeriod();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// Hands the metrics collected during this period to the sender thread, then starts the next period.
+	private void flushPeriod() {
+		if (batch == null)
+			return;
+		if (current.hasOverview()) {
+			// Every summary is reported once per period, 0 for units no record reported
+			startFlushLine(NewRelicMetrics.kSummaryMetricName, summaryTypes.size());
+			for (int slot = 0; slot < summaryTypes.size(); slot++)
+				addMetric(summaryMetricNames.get(slot), summaryTypes.get(slot), summaryTypes.get(slot),
+						current.summaryTotal(slot));
+			endFlushLine(NewRelicMetrics.kSummaryMetricName);
+		}
+		if ((percentiles != null) && (latestTimestamp > 0)) {
+			NewRelicBatch reported = new NewRelicBatch(0);
+			percentiles.report(latestTimestamp, reported);
+			startFlushLine(NewRelicPercentiles.kPercentilesMetricName, reported.size());
+			for (int i = 0; i < reported.size(); i++)
+				addMetric(reported.name(i), NewRelicPercentiles.kPercentilesMetricName, "", reported.total(i));
+			endFlushLine(NewRelicPercentiles.kPercentilesMetricName);
+		}
+		if (aggregator != null)
+			aggregator.drainTo(batch);
+		int batched = batch.size();
+		if (batched > 0) {
+			// Size the next batch for a period like this one
+			offerBatch(batched);
+		}
+		NewRelicSinkPeriod finished = current;
+		current = finished.next();
+		if (stats != null)
+			stats.endPeriod(finished.records, finished.metrics, finished.heldMetrics, registry);
+		registry.endPeriod();
+		// Only build the status line when it is logged: at FINE it mostly is not
+		if (settings.debug || logger.isLoggable(Level.FINE)) {
+			String counters = "New Relic Sink: metrics queued=" + sender.getQueuedMetrics()
+					+ ", sent=" + sender.getSentMetrics() + ", failed=" + sender.getFailedMetrics()
+					+ ", dropped=" + sender.getDroppedMetrics() + ", relayed=" + sender.getRelayedMetrics()
+					+ ", bytes sent=" + sender.getSentBytes()
+					+ ", queue depth=" + sender.getQueueDepth()
+					+ "; spooled=" + sender.getSpooledMetrics() + ", replayed=" + sender.getReplayedMetrics()
+					+ ", spool payloads=" + sender.getSpoolPending() + ", spool dropped payloads=" + sender.getSpoolDropped()
+					+ "; cache records=" + registry.recordCount() + ", metrics=" + registry.metricCount()
+					+ ", evicted records=" + registry.evictedRecords() + ", evicted metrics=" + registry.evictedMetrics()
+					+ "; reported names=" + registry.nameCount() + ", capped metrics=" + cappedMetrics
+					+ ", held metrics=" + finished.heldMetrics
+					+ ((percentiles != null) ? "; percentile series=" + percentiles.seriesCount()
+							+ ", capped series=" + percentiles.cappedSeries() : "")
+					+ ((debugWriter != null) ? "; debug lines=" + debugWriter.getWrittenLines()
+							+ ", dropped debug lines=" + debugWriter.getDroppedLines() : "");
+			if (settings.debug)
+				logger.info(counters);
+			else
+				logger.fine(counters);
+		}
+		if (settings.debug && settings.groupings) {
+			logger.info("Outputting metric groupings seen so far.");
+			for (Map.Entry<String, Integer> grouping : metricGroupings.entrySet())
+				logger.info(grouping.getKey() + " : " + grouping.getValue());
+		}
+	}
+
+	// Metrics reported at flush go to the debug file as a line without a context
+	private void startFlushLine(String name, int size) {
+		if ((debugWriter != null) && isDebugSampled(name))
+			debugMetrics = new NewRelicBatch(size);
+	}
+
+	private void endFlushLine(String name) {
+		if (debugMetrics != null) {
+			debugWriter.offer(new NewRelicDebugWriter.Line(latestTimestamp, current.number, "", name,
+					Collections.<MetricsTag>emptyList(), debugMetrics));
+			debugMetrics = null;
+		}
+	}
+
+	/**
+	 * Whether a record goes to the debug file: those of every debugperiods-th period, and
+	 * within those a debugsample fraction of records, the same ones each time.
+	 */
+	private boolean isDebugSampled(String metricBaseName) {
+		if (current.number % settings.debugPeriods != 0)
+			return false;
+		return (metricBaseName.hashCode() & Integer.MAX_VALUE) % 10000 < settings.debugSample;
+	}
+
+	// Starts, replaces or stops the debug file writer to match the settings
+	private void updateDebugWriter(NewRelicSinkSettings latest) {
+		File file = latest.debugFile.isEmpty() ? null : new File(latest.debugFile).getAbsoluteFile();
+		if ((debugWriter != null) && !debugWriter.getFile().equals(file)) {
+			debugWriter.stop();
+			debugWriter = null;
+		}
+		if ((file != null) && (debugWriter == null)) {
+			debugWriter = new NewRelicDebugWriter(file, latest.debugQueueSize, latest.debugFileBytes, latest.debugFiles);
+			debugWriter.start();
+			logger.info("New Relic Sink: Writing debug output to " + file);
+		}
+	}
+
+	/**
+	 * Switches to reloaded settings, at the first record of a period, when nothing is held
+	 * in the batch or the aggregator.
+	 */
+	private void takeSettings(NewRelicSinkSettings latest) {
+		if (latest == settings)
+			return;
+		if (!latest.classifiesLike(settings)) {
+			// Metrics were filtered and classified under the old settings, when first seen,
+			// and groupings are counted then too, so they start again with the registry
+			registry = new NewRelicMetricRegistry(cacheMaxEntries, cacheIdlePeriods);
+			if (latest.groupings)
+				metricGroupings = new HashMap<String, Integer>();
+		}
+		if (!latest.aggregate)
+			aggregator = null;
+		else if (aggregator == null)
+			aggregator = new NewRelicAggregator();
+		sender.setBatching(latest.batchSize, latest.batchLingerMillis, latest.queueTimeoutMillis);
+		batchSize = sender.getBatchSize();
+		// Once started, the sender keeps running in debug mode: it only delivers the batches
+		// queued before the switch, as no metrics are batched while debug is on
+		if (!latest.debug)
+			startSender();
+		updateDebugWriter(latest);
+		settings = latest;
+	}
+
+	// The sender is not started while in debug mode, until debug is turned off
+	private void startSender() {
+		if (!senderStarted) {
+			sender.start();
+			senderStarted = true;
+		}
+	}
 	
 	public String getMetricName(AbstractMetric metric) {
 		
@@ -243,20 +577,61 @@ public class NewRelicSink implements MetricsSink {
 			return div + metric.description();
 	}
 	
-	public String getMetricType(AbstractMetric metric) {
-		if (NewRelicMetrics.HadoopMetrics.containsKey(metric.name())) {
-			return NewRelicMetrics.HadoopMetrics.get(metric.name());
-		} else
-			return NewRelicMetrics.kDefaultMetricType;
+	/**
+	 * Builds the fully-qualified New Relic names (including the unit) under which a metric is reported,
+	 * indexed by NewRelicMetricRegistry.kRawPath etc. Overview names are null for non-overview metrics.
+	 * Deltas of counters are rates, so their unit is per second.
+	 */
+	public String[] getMetricPaths(String metricBaseName, String metricName, String metricType,
+			boolean isCounter, boolean isOverview) {
+		String suffix = metricBaseName + metricName + "[" + metricType + "]";
+		String deltaSuffix = metricBaseName + metricName + "[" + getDeltaType(metricType, isCounter) + "]";
+		String[] metricPaths = new String[4];
+		// Original metric
+		metricPaths[NewRelicMetricRegistry.kRawPath] = categoryName + div + suffix;
+		// Delta Metric - grouped separately under 'delta'
+		metricPaths[NewRelicMetricRegistry.kDeltaPath] = categoryName + div + deltaName + div + deltaSuffix;
+		// Overview Dashboard Metrics - grouped separately under 'overview' and 'overview_delta'
+		if (isOverview) {
+			metricPaths[NewRelicMetricRegistry.kOverviewPath] = categoryName + div + overviewName + div + suffix;
+			metricPaths[NewRelicMetricRegistry.kOverviewDeltaPath] = 
+					categoryName + div + overviewName + "_" + deltaName + div + deltaSuffix;
+		}
+		return metricPaths;
+	}
+
+	public String getDeltaType(String metricType, boolean isCounter) {
+		return isCounter ? metricType + NewRelicMetrics.kRateUnitSuffix : metricType;
 	}
 	
-	public Number adjustMetricValue(AbstractMetric metric) {
-		if(metric.name().endsWith("GB"))
-			return metric.value().floatValue() * NewRelicMetrics.kGigabytesToBytes;
-		else if (metric.name().endsWith("M"))
-			return metric.value().floatValue() * NewRelicMetrics.kMegabytesToBytes;   
-		else 
-			return metric.value();
+	// Slot of an overview delta type's total in a period; units added by the metric table file get one when first seen
+	private int getSummarySlot(String deltaType) {
+		Integer slot = summarySlots.get(deltaType);
+		if (slot == null) {
+			slot = summaryTypes.size();
+			summarySlots.put(deltaType, slot);
+			summaryTypes.add(deltaType);
+			summaryMetricNames.add(getSummaryMetricName(deltaType));
+		}
+		return slot;
+	}
+
+	/**
+	 * Summary Metrics - universally named (no context), so the relay can add them up across hosts.
+	 * Counters total their rates, e.g. "total ops[ops/second]", and gauges their changes over the
+	 * period, e.g. "total maps change[maps]".
+	 * @param deltaType the type of the deltas totalled (see getDeltaType)
+	 */
+	static String getSummaryMetricName(String deltaType) {
+		if (isRateType(deltaType))
+			return kSummaryMetricPrefix
+					+ deltaType.substring(0, deltaType.length() - NewRelicMetrics.kRateUnitSuffix.length())
+					+ "[" + deltaType + "]";
+		return kSummaryMetricPrefix + deltaType + " change[" + deltaType + "]";
+	}
+
+	static boolean isRateType(String deltaType) {
+		return deltaType.endsWith(NewRelicMetrics.kRateUnitSuffix);
 	}
 	
 	public static Context buildContext(String licenseKey, String hostname, String proctype) {
@@ -298,11 +673,29 @@ public class NewRelicSink implements MetricsSink {
 		return metricGroupingName;
 	} 
 
-	public void addMetric(Request request, String metricName, String metricOrigName, String metricType, Number metricValue) {
-		if(debugEnabled)
-			logger.info(metricName + ", " + metricOrigName + ", " + metricType + ", " + metricValue);
-		else
-			request.addMetric(component, metricName + "[" + metricType + "]", metricValue);
+	public void addMetric(String metricName, String metricOrigName, String metricType, double metricValue) {
+		current.metrics++;
+		if (debugMetrics != null)
+			debugMetrics.add(metricName, metricValue);
+		if(settings.debug) {
+			if (debugWriter == null)
+				logger.info(metricName + ", " + metricOrigName + ", " + metricType + ", " + metricValue);
+		}
+		else if (aggregator != null)
+			aggregator.add(metricName, metricValue);
+		else {
+			batch.add(metricName, metricValue);
+			// Large periods are streamed to the sender rather than held until flush()
+			if (batch.size() >= batchSize)
+				offerBatch(batchSize);
+		}
+	}
+
+	// The batch belongs to the sender once queued, which reports all batches of a period over the same duration
+	private void offerBatch(int nextCapacity) {
+		batch.setPeriod(current.number);
+		sender.offer(batch);
+		batch = new NewRelicBatch(nextCapacity);
 	}
 }
 
@@ -0,0 +1,47 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * What the sink collects during one Metrics2 period, besides the metrics
+ * themselves: record, metric and held-back counts, and the overview totals
+ * reported once per period as "summary" metrics (see NewRelicSink).
+ *
+ * Only the thread putting records writes to a period. flush() starts the next
+ * one and then reports the finished one, which is never written again.
+ */
+final class NewRelicSinkPeriod {
+
+	final long number;
+	int records, metrics, heldMetrics;
+	// Sum of the overview deltas of all records of the period, by summary slot
+	private double[] summaryTotals;
+	private boolean hasOverview;
+
+	NewRelicSinkPeriod(long number, int summarySlots) {
+		this.number = number;
+		summaryTotals = new double[Math.max(1, summarySlots)];
+	}
+
+	NewRelicSinkPeriod next() {
+		return new NewRelicSinkPeriod(number + 1, summaryTotals.length);
+	}
+
+	void addSummary(int slot, double delta) {
+		if (slot >= summaryTotals.length)
+			summaryTotals = Arrays.copyOf(summaryTotals, Math.max(slot + 1, summaryTotals.length * 2));
+		summaryTotals[slot] += delta;
+		hasOverview = true;
+	}
+
+	/**
+	 * @return true if any record of the period had overview metrics
+	 */
+	boolean hasOverview() {
+		return hasOverview;
+	}
+
+	double summaryTotal(int slot) {
+		return (slot < summaryTotals.length) ? summaryTotals[slot] : 0;
+	}
+}
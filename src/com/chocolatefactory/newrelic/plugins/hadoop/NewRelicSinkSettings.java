@@ -0,0 +1,91 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * The sink settings that can be changed while the daemon runs: debug output
+ * and its sampling, metric filters and classification, the cap on metric
+ * names, adaptive reporting and batching. A snapshot is built once, off the
+ * metrics thread when reloaded (see NewRelicSettingsWatcher), and never
+ * changes afterwards; the sink takes up a new one between periods, so each
+ * period is reported under a single snapshot.
+ *
+ * Filters, the metric table, "maxmetricnames" and "suppress" are applied to a
+ * metric once, when it is first seen, and metric groupings are counted then.
+ * When a reload changes any of them, or turns groupings output on or off, the
+ * sink forgets the metrics it has seen, and their deltas start again a period
+ * later.
+ */
+final class NewRelicSinkSettings {
+
+	final boolean debug, groupings, aggregate, suppress;
+	final int maxMetricNames, suppressHeartbeat, batchSize;
+	final double suppressEpsilon;
+	final long batchLingerMillis, queueTimeoutMillis;
+	// Debug output to a file rather than the log; empty for the log
+	final String debugFile;
+	final int debugQueueSize, debugFiles, debugPeriods;
+	final long debugFileBytes;
+	// Records written, out of every 10000 record names
+	final int debugSample;
+	final NewRelicMetricFilter filter;
+	// Only used by the metrics thread, which caches classifications in it
+	final NewRelicMetricTable metricTable;
+	// The settings applied to metrics when first seen, to tell whether a reload changes them
+	private final String classification;
+
+	NewRelicSinkSettings(Configuration conf) {
+		debug = conf.getString("debug", "false").equals("true");
+		groupings = conf.getString("nrgroupings", "false").equals("true");
+		debugFile = conf.getString("debugfile", "");
+		debugQueueSize = conf.getInt("debugqueuesize", NewRelicMetrics.kDefaultDebugQueueSize);
+		debugFileBytes = conf.getLong("debugfilebytes", NewRelicMetrics.kDefaultDebugFileBytes);
+		debugFiles = conf.getInt("debugfiles", NewRelicMetrics.kDefaultDebugFiles);
+		debugPeriods = Math.max(1, conf.getInt("debugperiods", 1));
+		debugSample = (int) Math.round(Math.max(0, Math.min(1, conf.getDouble("debugsample", 1))) * 10000);
+		aggregate = conf.getBoolean("aggregate", false);
+		maxMetricNames = conf.getInt("maxmetricnames", 0);
+		suppress = conf.getBoolean("suppress", false);
+		suppressEpsilon = conf.getDouble("suppressepsilon", 0);
+		suppressHeartbeat = Math.max(1, conf.getInt("suppressheartbeat", NewRelicMetrics.kDefaultSuppressHeartbeat));
+		batchSize = Math.max(1, conf.getInt("batchsize", NewRelicMetrics.kDefaultBatchSize));
+		batchLingerMillis = conf.getLong("batchlinger", NewRelicMetrics.kDefaultBatchLingerMillis);
+		queueTimeoutMillis = conf.getLong("queuetimeout", 0);
+		filter = new NewRelicMetricFilter(conf);
+		metricTable = new NewRelicMetricTable();
+		String metricsFile = conf.getString("metricsfile", "");
+		if (!metricsFile.isEmpty()) {
+			try {
+				metricTable.load(metricsFile);
+			} catch (IOException e) {
+				Context.getLogger().severe("New Relic Sink: could not load metric table, using the built-in one - " + e);
+			}
+		}
+		// The table file can change without the settings, so its time counts too
+		Map<String, String> classified = new TreeMap<String, String>();
+		for (Iterator<?> keys = conf.getKeys("filter"); keys.hasNext();) {
+			String key = (String) keys.next();
+			classified.put(key, conf.getList(key).toString());
+		}
+		classified.put("metricsfile", metricsFile + "@" + new File(metricsFile).lastModified());
+		classified.put("maxmetricnames", String.valueOf(maxMetricNames));
+		classified.put("suppress", String.valueOf(suppress));
+		classified.put("groupings", String.valueOf(debug && groupings));
+		classification = classified.toString();
+	}
+
+	/**
+	 * @return true if metrics seen under the other settings are filtered and classified as under these
+	 */
+	boolean classifiesLike(NewRelicSinkSettings other) {
+		return classification.equals(other.classification);
+	}
+}
@@ -0,0 +1,86 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableGaugeInt;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+
+/**
+ * The sink's own metrics, published as a Metrics2 source so they show up in
+ * JMX and, like any other record, are shipped to New Relic by the sink itself.
+ *
+ * Latencies are sampled on the threads that do the work; the per-period gauges
+ * are set by the sink in flush(). Delivery counters are read from the sender
+ * when the metrics system takes a snapshot.
+ */
+class NewRelicSinkStats implements MetricsSource {
+
+	static final String kSourceName = "NewRelicSinkStats";
+
+	private static final MetricsInfo kSentMetrics = Interns.info("SentMetrics", "Metrics accepted by the collector");
+	private static final MetricsInfo kFailedMetrics = Interns.info("FailedMetrics", "Metrics the collector did not accept");
+	private static final MetricsInfo kDroppedMetrics = Interns.info("DroppedMetrics", "Metrics dropped because the send queue was full");
+	private static final MetricsInfo kSentBytes = Interns.info("SentBytes", "Payload bytes accepted by the collector");
+	private static final MetricsInfo kSpooledMetrics = Interns.info("SpooledMetrics", "Metrics written to the spool");
+	private static final MetricsInfo kReplayedMetrics = Interns.info("ReplayedMetrics", "Spooled metrics replayed to the collector");
+	private static final MetricsInfo kRelayedMetrics = Interns.info("RelayedMetrics", "Metrics sent through the relay");
+
+	private final MetricsRegistry registry = new MetricsRegistry(kSourceName).setContext("newrelic");
+	private final NewRelicSender sender;
+	private final MutableQuantiles putMetricsLatency, deliverLatency;
+	private final MutableGaugeInt periodRecords, periodMetrics, periodHeldMetrics, queueDepth, spoolPayloads;
+	private final MutableGaugeInt cacheRecords, cacheMetrics, cacheNames;
+
+	NewRelicSinkStats(NewRelicSender sender, int interval) {
+		this.sender = sender;
+		putMetricsLatency = registry.newQuantiles("PutMetricsLatency", "Time to process one record",
+				"Records", "Micros", interval);
+		deliverLatency = registry.newQuantiles("DeliverLatency", "Time to post one payload",
+				"Payloads", "Millis", interval);
+		periodRecords = registry.newGauge("PeriodRecords", "Records put during the last period", 0);
+		periodMetrics = registry.newGauge("PeriodMetrics", "Metric values added during the last period", 0);
+		periodHeldMetrics = registry.newGauge("PeriodHeldMetrics",
+				"Metrics held back by reporting intervals and suppression during the last period", 0);
+		queueDepth = registry.newGauge("QueueDepth", "Batches waiting for the sender", 0);
+		spoolPayloads = registry.newGauge("SpoolPayloads", "Payloads waiting in the spool", 0);
+		cacheRecords = registry.newGauge("CacheRecords", "Records in the metric cache", 0);
+		cacheMetrics = registry.newGauge("CacheMetrics", "Metrics in the metric cache", 0);
+		cacheNames = registry.newGauge("CacheNames", "Distinct metric names being reported", 0);
+	}
+
+	void addPutMetrics(long nanos) {
+		putMetricsLatency.add(nanos / 1000);
+	}
+
+	void addDeliver(long nanos) {
+		deliverLatency.add(nanos / 1000000);
+	}
+
+	void endPeriod(int records, int metrics, int heldMetrics, NewRelicMetricRegistry cache) {
+		periodRecords.set(records);
+		periodMetrics.set(metrics);
+		periodHeldMetrics.set(heldMetrics);
+		queueDepth.set(sender.getQueueDepth());
+		spoolPayloads.set(sender.getSpoolPending());
+		cacheRecords.set(cache.recordCount());
+		cacheMetrics.set(cache.metricCount());
+		cacheNames.set(cache.nameCount());
+	}
+
+	@Override
+	public void getMetrics(MetricsCollector collector, boolean all) {
+		MetricsRecordBuilder builder = collector.addRecord(registry.info());
+		registry.snapshot(builder, all);
+		builder.addCounter(kSentMetrics, sender.getSentMetrics())
+				.addCounter(kFailedMetrics, sender.getFailedMetrics())
+				.addCounter(kDroppedMetrics, sender.getDroppedMetrics())
+				.addCounter(kSentBytes, sender.getSentBytes())
+				.addCounter(kSpooledMetrics, sender.getSpooledMetrics())
+				.addCounter(kReplayedMetrics, sender.getReplayedMetrics())
+				.addCounter(kRelayedMetrics, sender.getRelayedMetrics());
+	}
+}
@@ -0,0 +1,156 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable quantile sketch over positive values, such as latencies. Values
+ * are counted in logarithmic buckets: bucket i holds values in
+ * (gamma^(i-1), gamma^i], with gamma = (1 + accuracy) / (1 - accuracy), so any
+ * quantile is returned within the relative accuracy of a value that was added.
+ * Values of kMinValue or less, including zero, are counted apart.
+ *
+ * Buckets are kept in one array spanning the lowest to the highest bucket in
+ * use, which grows as needed up to maxBuckets. Past that, the lowest buckets
+ * are folded into the lowest one kept, so memory stays bounded and only the
+ * low quantiles lose accuracy. Two sketches merge exactly if they were built
+ * with the same accuracy. Not thread-safe.
+ */
+class NewRelicSketch {
+
+	static final double kMinValue = 1e-9;
+
+	private static final int kInitialBuckets = 32;
+
+	private final double accuracy, gamma, logGamma;
+	private final int maxBuckets;
+	// Counts per bucket; a sketch takes up to 2^31 - 1 values in one bucket
+	private int[] counts = new int[0];
+	// Bucket index of counts[0], and the lowest and highest bucket in use (none while lowest > highest)
+	private int offset, lowest = 1, highest = 0;
+	private long zeroCount, bucketCount;
+
+	/**
+	 * @param accuracy relative accuracy of quantiles, e.g. 0.01 for 1%
+	 * @param maxBuckets buckets kept at most
+	 */
+	NewRelicSketch(double accuracy, int maxBuckets) {
+		if ((accuracy <= 0) || (accuracy >= 1))
+			throw new IllegalArgumentException("accuracy must be between 0 and 1");
+		this.accuracy = accuracy;
+		this.gamma = (1 + accuracy) / (1 - accuracy);
+		this.logGamma = Math.log(gamma);
+		this.maxBuckets = Math.max(maxBuckets, 1);
+	}
+
+	void add(double value) {
+		if (Double.isNaN(value))
+			return;
+		if (value <= kMinValue)
+			zeroCount++;
+		else
+			addToBucket((int) Math.ceil(Math.log(value) / logGamma), 1);
+	}
+
+	void merge(NewRelicSketch other) {
+		if (other.accuracy != accuracy)
+			throw new IllegalArgumentException("cannot merge sketches of different accuracy");
+		zeroCount += other.zeroCount;
+		if (other.bucketCount == 0)
+			return;
+		// Widening to the other's range first moves the buckets at most once
+		reserve(other.lowest, other.highest);
+		for (int index = other.lowest; index <= other.highest; index++) {
+			int bucket = other.counts[index - other.offset];
+			if (bucket != 0)
+				addToBucket(index, bucket);
+		}
+	}
+
+	/**
+	 * @param quantile between 0 and 1, e.g. 0.99
+	 * @return the estimated value at that quantile, or NaN if the sketch is empty
+	 */
+	double quantile(double quantile) {
+		long count = count();
+		if (count == 0)
+			return Double.NaN;
+		long rank = (long) (Math.max(0, Math.min(1, quantile)) * (count - 1));
+		long seen = zeroCount;
+		if (rank < seen)
+			return 0;
+		for (int index = lowest; index < highest; index++) {
+			seen += counts[index - offset];
+			if (seen > rank)
+				return value(index);
+		}
+		return value(highest);
+	}
+
+	long count() {
+		return zeroCount + bucketCount;
+	}
+
+	// Keeps the buckets, so a reused sketch does not allocate again.
+	void clear() {
+		if (lowest <= highest)
+			Arrays.fill(counts, lowest - offset, highest - offset + 1, 0);
+		lowest = 1;
+		highest = 0;
+		zeroCount = 0;
+		bucketCount = 0;
+	}
+
+	// Buckets allocated; the sketch takes about 4 bytes per bucket
+	int buckets() {
+		return counts.length;
+	}
+
+	// The value of a bucket within the relative accuracy of all values in it
+	private double value(int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	private void addToBucket(int index, int count) {
+		if ((index < lowest) || (index > highest))
+			reserve(index, index);
+		// Folded into the lowest bucket kept
+		index = Math.max(index, lowest);
+		counts[index - offset] += count;
+		bucketCount += count;
+	}
+
+	/**
+	 * Widens the buckets in use to include first..last. Past maxBuckets, the lowest
+	 * buckets are folded into the lowest one kept.
+	 */
+	private void reserve(int first, int last) {
+		boolean empty = lowest > highest;
+		int newLowest = empty ? first : Math.min(first, lowest);
+		int newHighest = empty ? last : Math.max(last, highest);
+		if (newHighest - newLowest >= maxBuckets)
+			newLowest = newHighest - maxBuckets + 1;
+		int span = newHighest - newLowest + 1;
+		long folded = 0;
+		if (!empty) {
+			for (int index = lowest; index < Math.min(newLowest, highest + 1); index++) {
+				folded += counts[index - offset];
+				counts[index - offset] = 0;
+			}
+		}
+		if ((newLowest < offset) || (newHighest >= offset + counts.length)) {
+			int capacity = Math.min(maxBuckets, Math.max(Math.max(span + span / 4, kInitialBuckets), counts.length));
+			int[] resized = new int[capacity];
+			// Leave room on both sides, as values move either way
+			int newOffset = newLowest - (capacity - span) / 2;
+			if (!empty) {
+				for (int index = Math.max(lowest, newLowest); index <= highest; index++)
+					resized[index - newOffset] = counts[index - offset];
+			}
+			counts = resized;
+			offset = newOffset;
+		}
+		counts[newLowest - offset] += folded;
+		lowest = newLowest;
+		highest = newHighest;
+	}
+}
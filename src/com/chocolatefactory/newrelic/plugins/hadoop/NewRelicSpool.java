@@ -0,0 +1,262 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+/**
+ * Local, bounded store for payloads that could not be delivered.
+ *
+ * Payloads are appended to memory-mapped segment files of a fixed size in the
+ * spool directory, and read back oldest first. Each segment starts with a magic
+ * number and its read offset, so a restarted daemon resumes where it left off.
+ * Each record is [length][metric count][compressed flag][payload bytes]; a zero
+ * length marks the end of the written part of a segment. A fully read segment
+ * is deleted; when the spool exceeds its disk budget, the oldest segment is
+ * deleted with whatever it still holds.
+ */
+class NewRelicSpool {
+
+	private static final int kMagic = 0x4E525350;
+	private static final int kSegmentHeaderSize = 8;
+	private static final int kRecordHeaderSize = 9;
+	private static final String kSegmentPrefix = "spool-";
+	private static final String kSegmentSuffix = ".seg";
+
+	/**
+	 * A payload read back from the spool. The byte array is reused between reads.
+	 */
+	static class Entry {
+		byte[] bytes = new byte[0];
+		int length;
+		int metrics;
+		boolean compressed;
+		// Where the payload was read from, so remove() takes out this payload and no other
+		long segment;
+		int offset;
+	}
+
+	private static class Segment {
+		final File file;
+		final long sequence;
+		final MappedByteBuffer buffer;
+		int readOffset, writeOffset;
+
+		Segment(File file, long sequence, MappedByteBuffer buffer) {
+			this.file = file;
+			this.sequence = sequence;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Logger logger;
+	private long droppedPayloads;
+	private int pendingPayloads;
+
+	NewRelicSpool(File directory, int segmentSize, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+		this.logger = Context.getLogger();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create spool directory " + directory);
+		recover();
+	}
+
+	/**
+	 * Appends a payload, evicting the oldest segment if the disk budget is exceeded.
+	 * @return false if the payload is larger than a segment and was not stored
+	 */
+	synchronized boolean append(byte[] payload, int length, int metrics, boolean compressed) throws IOException {
+		if (kSegmentHeaderSize + kRecordHeaderSize + length > segmentSize) {
+			droppedPayloads++;
+			return false;
+		}
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		if ((segment == null) || (segment.writeOffset + kRecordHeaderSize + length > segmentSize)) {
+			if (segment != null)
+				segment.buffer.force();
+			segment = createSegment((segment == null) ? 0 : segment.sequence + 1);
+			while (segments.size() > maxSegments) {
+				Segment oldest = segments.removeFirst();
+				int lost = countRecords(oldest);
+				droppedPayloads += lost;
+				pendingPayloads -= lost;
+				delete(oldest);
+				logger.warning("New Relic Sink: spool is full, dropped " + lost + " undelivered payloads.");
+			}
+		}
+		MappedByteBuffer buffer = segment.buffer;
+		buffer.position(segment.writeOffset + 4);
+		buffer.putInt(metrics);
+		buffer.put((byte) (compressed ? 1 : 0));
+		buffer.put(payload, 0, length);
+		// Write the length last, so a half-written record is never read back
+		buffer.putInt(segment.writeOffset, length);
+		segment.writeOffset += kRecordHeaderSize + length;
+		pendingPayloads++;
+		return true;
+	}
+
+	/**
+	 * Reads the oldest payload without removing it.
+	 * @return false if the spool is empty
+	 */
+	synchronized boolean peek(Entry entry) {
+		Segment segment = firstReadable();
+		if (segment == null)
+			return false;
+		MappedByteBuffer buffer = segment.buffer;
+		entry.segment = segment.sequence;
+		entry.offset = segment.readOffset;
+		entry.length = buffer.getInt(segment.readOffset);
+		entry.metrics = buffer.getInt(segment.readOffset + 4);
+		entry.compressed = buffer.get(segment.readOffset + 8) != 0;
+		if (entry.bytes.length < entry.length)
+			entry.bytes = new byte[Math.max(entry.length, entry.bytes.length * 2)];
+		buffer.position(segment.readOffset + kRecordHeaderSize);
+		buffer.get(entry.bytes, 0, entry.length);
+		return true;
+	}
+
+	/**
+	 * Removes a payload returned by peek(), unless it is gone already: a full spool may
+	 * have evicted its segment in between, counting it as dropped.
+	 * @return false if the payload was no longer in the spool
+	 */
+	synchronized boolean remove(Entry entry) {
+		Segment segment = firstReadable();
+		if ((segment == null) || (segment.sequence != entry.segment) || (segment.readOffset != entry.offset))
+			return false;
+		segment.readOffset += kRecordHeaderSize + segment.buffer.getInt(segment.readOffset);
+		segment.buffer.putInt(4, segment.readOffset);
+		pendingPayloads--;
+		if ((segment.readOffset >= segment.writeOffset) && (segment != segments.getLast())) {
+			segments.remove(segment);
+			delete(segment);
+		}
+		return true;
+	}
+
+	synchronized boolean isEmpty() {
+		return pendingPayloads == 0;
+	}
+
+	synchronized int getPendingPayloads() {
+		return pendingPayloads;
+	}
+
+	synchronized long getDroppedPayloads() {
+		return droppedPayloads;
+	}
+
+	synchronized long getDiskBytes() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	private Segment firstReadable() {
+		while (!segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			if (segment.readOffset < segment.writeOffset)
+				return segment;
+			if (segment == segments.getLast())
+				return null;
+			segments.removeFirst();
+			delete(segment);
+		}
+		return null;
+	}
+
+	private Segment createSegment(long sequence) throws IOException {
+		File file = new File(directory, kSegmentPrefix + String.format("%020d", sequence) + kSegmentSuffix);
+		Segment segment = new Segment(file, sequence, map(file));
+		segment.buffer.putInt(0, kMagic);
+		segment.buffer.putInt(4, kSegmentHeaderSize);
+		segment.readOffset = kSegmentHeaderSize;
+		segment.writeOffset = kSegmentHeaderSize;
+		segments.addLast(segment);
+		return segment;
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	// Picks up segments left behind by a previous run, in sequence order.
+	private void recover() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(kSegmentPrefix) && name.endsWith(kSegmentSuffix);
+			}
+		});
+		if (names == null)
+			return;
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(directory, name);
+			long sequence;
+			try {
+				sequence = Long.parseLong(name.substring(kSegmentPrefix.length(), name.length() - kSegmentSuffix.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (file.length() != segmentSize) {
+				logger.warning("New Relic Sink: discarding spool segment of a different size: " + file);
+				file.delete();
+				continue;
+			}
+			Segment segment = new Segment(file, sequence, map(file));
+			if (segment.buffer.getInt(0) != kMagic) {
+				file.delete();
+				continue;
+			}
+			segment.readOffset = segment.buffer.getInt(4);
+			segment.writeOffset = kSegmentHeaderSize;
+			while (segment.writeOffset + kRecordHeaderSize <= segmentSize) {
+				int length = segment.buffer.getInt(segment.writeOffset);
+				if ((length <= 0) || (segment.writeOffset + kRecordHeaderSize + length > segmentSize))
+					break;
+				segment.writeOffset += kRecordHeaderSize + length;
+			}
+			if ((segment.readOffset < kSegmentHeaderSize) || (segment.readOffset > segment.writeOffset))
+				segment.readOffset = segment.writeOffset;
+			segments.addLast(segment);
+			pendingPayloads += countRecords(segment);
+		}
+		if (pendingPayloads > 0)
+			logger.info("New Relic Sink: " + pendingPayloads + " undelivered payloads found in spool " + directory);
+	}
+
+	private static int countRecords(Segment segment) {
+		int count = 0;
+		for (int offset = segment.readOffset; offset < segment.writeOffset; offset += kRecordHeaderSize + segment.buffer.getInt(offset))
+			count++;
+		return count;
+	}
+
+	private void delete(Segment segment) {
+		// The mapping itself is released when the buffer is garbage collected
+		if (!segment.file.delete())
+			logger.warning("New Relic Sink: could not delete spool segment " + segment.file);
+	}
+}
@@ -0,0 +1,140 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.counter;
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.junit.Test;
+
+public class NewRelicMetricRegistryTest {
+
+	private static final NewRelicMetricTable.MetricClass kOps = new NewRelicMetricTable.MetricClass("ops", 1, true, false);
+	private static final AbstractMetric kMetric = counter("AddBlockOps", 1);
+
+	@Test
+	public void findsRecordsAndMetricsByIdentity() {
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(100, 3);
+		int first = registry.addRecord(task("attempt_1"), "base");
+		int second = registry.addRecord(task("attempt_2"), "base");
+		assertEquals(first, registry.findRecord(task("attempt_1")));
+		assertEquals(second, registry.findRecord(task("attempt_2")));
+		assertEquals(-1, registry.findRecord(task("attempt_3")));
+
+		int metric = registry.addMetric(first, kMetric, kOps, paths("a"), 1, false);
+		assertEquals(metric, registry.findMetric(first, counter("AddBlockOps", 2)));
+		assertEquals(-1, registry.findMetric(second, kMetric));
+		assertEquals(-1, registry.findMetric(first, counter("RemoveBlockOps", 1)));
+	}
+
+	@Test
+	public void evictsIdleEntriesAndTheirMetrics() {
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(100, 2);
+		int kept = registry.addRecord(task("kept"), "base");
+		int idle = registry.addRecord(task("idle"), "base");
+		registry.addMetric(kept, kMetric, kOps, paths("kept"), 1, false);
+		registry.addMetric(idle, kMetric, kOps, paths("idle"), 1, false);
+		registry.endPeriod();
+		for (int period = 0; period < 2; period++) {
+			registry.findRecord(task("kept"));
+			registry.findMetric(kept, kMetric);
+			registry.endPeriod();
+		}
+		assertEquals(1, registry.recordCount());
+		assertEquals(1, registry.metricCount());
+		assertEquals(1, registry.evictedRecords());
+		assertEquals(1, registry.evictedMetrics());
+		assertEquals(-1, registry.findRecord(task("idle")));
+		assertEquals(kept, registry.findRecord(task("kept")));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlySeenBeyondTheMaximum() {
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(10, 100);
+		for (int i = 0; i < 15; i++) {
+			registry.addRecord(task("attempt_" + i), "base");
+			registry.endPeriod();
+		}
+		assertEquals(10, registry.recordCount());
+		for (int i = 0; i < 15; i++)
+			assertEquals("attempt_" + i, i >= 5, registry.findRecord(task("attempt_" + i)) >= 0);
+	}
+
+	@Test
+	public void keepsLookupsAfterRemovingFromProbeChains() {
+		// Enough entries that removals break up probe chains and the rest have to shift back
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(100000, 1);
+		int records = 5000;
+		int[] ids = new int[records];
+		for (int i = 0; i < records; i++)
+			ids[i] = registry.addRecord(task("attempt_" + i), "base");
+		registry.endPeriod();
+		for (int i = 0; i < records; i += 3)
+			registry.findRecord(task("attempt_" + i));
+		registry.endPeriod();
+		assertEquals((records + 2) / 3, registry.recordCount());
+		for (int i = 0; i < records; i++)
+			assertEquals("attempt_" + i, ((i % 3) == 0) ? ids[i] : -1, registry.findRecord(task("attempt_" + i)));
+
+		// Freed ids are reused, and every entry is still found after refilling
+		for (int i = 0; i < records; i++) {
+			if ((i % 3) != 0)
+				ids[i] = registry.addRecord(task("attempt_" + i), "base");
+		}
+		assertEquals(records, registry.recordCount());
+		for (int i = 0; i < records; i++)
+			assertEquals("attempt_" + i, ids[i], registry.findRecord(task("attempt_" + i)));
+	}
+
+	@Test
+	public void countsSharedNamesOnce() {
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(100, 1);
+		int first = registry.addRecord(task("attempt_1"), "base");
+		int second = registry.addRecord(task("attempt_2"), "base");
+		// Per-task records whose task is not part of their names
+		registry.addMetric(first, kMetric, kOps, paths("shared"), 1, false);
+		assertEquals(0, registry.countNewNames(paths("shared")));
+		assertEquals(1, registry.countNewNames(paths("other")));
+		registry.addMetric(second, kMetric, kOps, paths("shared"), 1, false);
+		registry.addMetric(second, counter("RemoveBlockOps", 1), kOps, new String[] { "own", null }, 1, false);
+		assertEquals(2, registry.nameCount());
+
+		registry.endPeriod();
+		registry.findRecord(task("attempt_2"));
+		registry.findMetric(second, kMetric);
+		registry.endPeriod();
+		// The shared name is still used by the second record's metric
+		assertEquals(1, registry.nameCount());
+		assertEquals(0, registry.countNewNames(paths("shared")));
+		assertEquals(1, registry.countNewNames(paths("own")));
+		registry.endPeriod();
+		assertEquals(0, registry.nameCount());
+	}
+
+	@Test
+	public void sumsHeldChangesUntilReported() {
+		NewRelicMetricRegistry registry = new NewRelicMetricRegistry(100, 3);
+		int record = registry.addRecord(task("attempt_1"), "base");
+		int metric = registry.addMetric(record, kMetric, kOps, paths("a"), 3, false);
+		assertTrue(registry.isAdaptive(metric));
+		assertFalse(registry.hasReported(metric));
+		registry.setReported(metric, 100, Double.NaN, 1000);
+		registry.addHeldChange(metric, 20);
+		registry.addHeldChange(metric, 5);
+		assertEquals(25, registry.heldChange(metric), 0);
+		registry.setReported(metric, 5, 25, 2000);
+		assertEquals(0, registry.heldChange(metric), 0);
+	}
+
+	private static MetricsRecord task(String taskId) {
+		return record(0, "mapred", "shuffleInput", new String[] { "taskId", taskId });
+	}
+
+	// Raw path only
+	private static String[] paths(String raw) {
+		return new String[] { raw, null };
+	}
+}
@@ -0,0 +1,39 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NewRelicRelayTest {
+
+	private static final String kRate = NewRelicSink.getSummaryMetricName("ops" + NewRelicMetrics.kRateUnitSuffix);
+	private static final String kChange = NewRelicSink.getSummaryMetricName("ops");
+
+	@Test
+	public void averagesRatesAndSumsChangesOverTheInterval() {
+		// Two periods of each host in one interval
+		NewRelicRelay.Component h1 = host("h1", new double[] { 10, 20 }, new double[] { 3, -1 });
+		NewRelicRelay.Component h2 = host("h2", new double[] { 5, 5 }, new double[] { 4, 4 });
+		h1.batch.fold();
+		h2.batch.fold();
+		NewRelicBatch cluster = NewRelicRelay.rollUp(Arrays.asList(h1, h2)).get("namenode");
+		Map<String, Double> totals = new HashMap<String, Double>();
+		for (int i = 0; i < cluster.size(); i++)
+			totals.put(cluster.name(i), cluster.total(i));
+		assertEquals(15 + 5, totals.get(kRate), 1e-9);
+		assertEquals(2 + 8, totals.get(kChange), 1e-9);
+	}
+
+	private static NewRelicRelay.Component host(String name, double[] rates, double[] changes) {
+		NewRelicRelay.Component component = new NewRelicRelay.Component(name, "namenode");
+		for (int period = 0; period < rates.length; period++) {
+			component.batch.add(kRate, rates[period]);
+			component.batch.add(kChange, changes[period]);
+		}
+		return component;
+	}
+}
@@ -0,0 +1,145 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.gauge;
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.newrelic.metrics.publish.binding.Context;
+
+public class NewRelicSenderTest {
+
+	private static final int kMetrics = 100;
+	private static final Pattern kDuration = Pattern.compile("\"duration\":(\\d+)");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestCollector collector;
+
+	@Before
+	public void startCollector() throws IOException {
+		collector = new TestCollector();
+	}
+
+	@After
+	public void stopCollector() {
+		collector.stop();
+	}
+
+	@Test
+	public void replaysWhatWasSpooledDuringAnOutage() throws IOException {
+		SubsetConfiguration conf = configuration("compress", "true", "spooldir", folder.newFolder().getPath(),
+				"spoolreplay", "5");
+		NewRelicBatch batch = batch(kMetrics);
+
+		collector.setAvailable(false);
+		NewRelicSender sender = newSender(conf);
+		for (int i = 0; i < 8; i++)
+			sender.deliver(batch, 0, batch.size());
+		assertEquals(8L * kMetrics, sender.getSpooledMetrics());
+		assertEquals(0, collector.payloads().size());
+
+		// A restarted daemon picks the backlog up from disk, and replays it with each delivery
+		collector.setAvailable(true);
+		sender = newSender(conf);
+		assertEquals(8, sender.getSpoolPending());
+		int deliveries = 0;
+		while (sender.getSpoolPending() > 0) {
+			int before = sender.getSpoolPending();
+			sender.deliver(batch, 0, batch.size());
+			deliveries++;
+			assertTrue("spool is not draining", sender.getSpoolPending() < before);
+		}
+		assertEquals(2, deliveries);
+		assertEquals(8L * kMetrics, sender.getReplayedMetrics());
+		assertEquals(8 + deliveries, collector.payloads().size());
+	}
+
+	@Test
+	public void reportsOneDurationForAllBatchesOfAPeriod() throws Exception {
+		// Two records of 25 gauges; past the first period, each gauge is reported with its change,
+		// so every record fills a batch of 50 and is streamed to the sender on its own
+		NewRelicSink sink = new NewRelicSink();
+		sink.init(configuration("proctype", "namenode", "nrlicensekey", "0000000000000000000000000000000000000000",
+				"hostname", "test", "stats", "false", "batchsize", "50", "batchlinger", "0"));
+		putMetrics(sink, 0, "first");
+		putMetrics(sink, 0, "second");
+		sink.flush();
+		awaitPayloads(1);
+		Thread.sleep(2000);
+		putMetrics(sink, 1, "first");
+		awaitPayloads(2);
+		Thread.sleep(1000);
+		putMetrics(sink, 1, "second");
+		sink.flush();
+		awaitPayloads(3);
+
+		List<Integer> durations = durations();
+		assertEquals(NewRelicMetrics.kMetricInterval, (int) durations.get(0));
+		// Both batches of the second period cover the time since the first, however far apart they were sent
+		assertTrue("second period lasted " + durations.get(1), durations.get(1) >= 2);
+		assertEquals(durations.get(1), durations.get(2));
+	}
+
+	static NewRelicBatch batch(int metrics) {
+		NewRelicBatch batch = new NewRelicBatch(metrics);
+		for (int i = 0; i < metrics; i++)
+			batch.add("Component/dfs/datanode/DataNode/metric_" + i + "[ops]", i);
+		return batch;
+	}
+
+	private static void putMetrics(NewRelicSink sink, int period, String name) {
+		AbstractMetric[] metrics = new AbstractMetric[25];
+		for (int i = 0; i < metrics.length; i++)
+			metrics[i] = gauge("metric_" + i, period + i);
+		sink.putMetrics(record(1381000000000L + period * 60000L, "dfs", name, new String[] { "Hostname", "test" },
+				metrics));
+	}
+
+	private void awaitPayloads(int payloads) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((collector.payloads().size() < payloads) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(10);
+		assertEquals(payloads, collector.payloads().size());
+	}
+
+	private List<Integer> durations() {
+		List<Integer> durations = new ArrayList<Integer>();
+		for (String payload : collector.payloads()) {
+			Matcher matcher = kDuration.matcher(payload);
+			assertTrue(payload, matcher.find());
+			durations.add(Integer.parseInt(matcher.group(1)));
+		}
+		return durations;
+	}
+
+	private NewRelicSender newSender(SubsetConfiguration conf) {
+		Context context = NewRelicSink.buildContext("0000000000000000000000000000000000000000", "test", "datanode");
+		return new NewRelicSender(context, context.getComponents().next(), conf);
+	}
+
+	private SubsetConfiguration configuration(String... settings) {
+		BaseConfiguration conf = new BaseConfiguration();
+		conf.setProperty("newrelic.proctype", "datanode");
+		conf.setProperty("newrelic.collectoruri", collector.uri());
+		for (int i = 0; i + 1 < settings.length; i += 2)
+			conf.setProperty("newrelic." + settings[i], settings[i + 1]);
+		return new SubsetConfiguration(conf, "newrelic", ".");
+	}
+}
@@ -0,0 +1,49 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NewRelicSinkPeriodTest {
+
+	@Test
+	public void addsUpSummariesBySlot() {
+		NewRelicSinkPeriod period = new NewRelicSinkPeriod(0, 2);
+		assertFalse(period.hasOverview());
+		period.addSummary(0, 1.5);
+		period.addSummary(1, 4);
+		period.addSummary(0, 2.5);
+		assertTrue(period.hasOverview());
+		assertEquals(4, period.summaryTotal(0), 0);
+		assertEquals(4, period.summaryTotal(1), 0);
+	}
+
+	@Test
+	public void growsForSlotsAddedLater() {
+		NewRelicSinkPeriod period = new NewRelicSinkPeriod(0, 1);
+		period.addSummary(5, 3);
+		assertEquals(3, period.summaryTotal(5), 0);
+		assertEquals(0, period.summaryTotal(1), 0);
+		assertEquals(0, period.summaryTotal(100), 0);
+	}
+
+	@Test
+	public void startsTheNextPeriodEmpty() {
+		NewRelicSinkPeriod period = new NewRelicSinkPeriod(7, 1);
+		period.addSummary(3, 2);
+		period.records = 4;
+		period.metrics = 10;
+		period.heldMetrics = 1;
+		NewRelicSinkPeriod next = period.next();
+		assertEquals(8, next.number);
+		assertFalse(next.hasOverview());
+		assertEquals(0, next.summaryTotal(3), 0);
+		assertEquals(0, next.records);
+		assertEquals(0, next.metrics);
+		assertEquals(0, next.heldMetrics);
+		// The finished period keeps its totals
+		assertEquals(2, period.summaryTotal(3), 0);
+	}
+}
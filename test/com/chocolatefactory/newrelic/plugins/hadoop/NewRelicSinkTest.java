@@ -0,0 +1,126 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.counter;
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.gauge;
+import static com.chocolatefactory.newrelic.plugins.hadoop.TestRecords.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.SubsetConfiguration;
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.junit.Test;
+
+import com.newrelic.metrics.publish.binding.ComponentData;
+import com.newrelic.metrics.publish.binding.Context;
+
+public class NewRelicSinkTest {
+
+	private static final long kStart = 1381000000000L;
+
+	@Test
+	public void reportsSummaryTotalsOncePerPeriod() {
+		CapturingSink sink = newSink();
+		long[][] addBlockOps = { { 600, 1200 }, { 1200, 1500 }, { 60, 2100 } };
+		long[] mapsLaunched = { 0, 120, 240 };
+		long[][] runningMaps = { { 3, 10 }, { 7, 12 }, { 4, 12 } };
+		for (int period = 0; period < 3; period++) {
+			long timestamp = kStart + period * 60000L;
+			sink.putMetrics(namenode(timestamp, "h1", counter("AddBlockOps", addBlockOps[period][0]),
+					counter("maps_launched", mapsLaunched[period]), gauge("maps_running", runningMaps[period][0])));
+			sink.putMetrics(namenode(timestamp, "h2", counter("AddBlockOps", addBlockOps[period][1]),
+					gauge("maps_running", runningMaps[period][1])));
+			sink.flush();
+		}
+		// Counters: per-second rates summed over both hosts; the first period has no deltas yet,
+		// and h1's counter reset in the last one counts from zero
+		assertEquals("Component/overview/total ops[ops/second]", NewRelicSink.getSummaryMetricName("ops/second"));
+		assertPeriods(sink, NewRelicSink.getSummaryMetricName("ops/second"), 0, 15, 11);
+		assertPeriods(sink, NewRelicSink.getSummaryMetricName("maps/second"), 0, 2, 2);
+		// Gauges: their changes over the period, in a total of their own
+		assertEquals("Component/overview/total maps change[maps]", NewRelicSink.getSummaryMetricName("maps"));
+		assertPeriods(sink, NewRelicSink.getSummaryMetricName("maps"), 0, 6, -3);
+		assertPeriods(sink, NewRelicSink.getSummaryMetricName("ops"), 0, 0, 0);
+	}
+
+	@Test
+	public void keepsChangesBeforeAResetWhileHeldBack() {
+		CapturingSink sink = newSink("suppress", "true", "suppressepsilon", "1000", "suppressheartbeat", "4");
+		long[] values = { 100, 110, 130, 5, 15, 25 };
+		for (int period = 0; period < values.length; period++) {
+			sink.putMetrics(record(kStart + period * 60000L, "rpc", "rpc", new String[] { "Hostname", "h1" },
+					counter("RpcQueueTimeNumOps", values[period])));
+			sink.flush();
+		}
+		String delta = null;
+		for (String name : sink.periods.get(1).keySet()) {
+			if (name.startsWith("Component/delta/"))
+				delta = name;
+		}
+		assertEquals(10.0 / 60, sink.periods.get(1).get(delta), 1e-12);
+		for (int period = 2; period < 5; period++)
+			assertNull("period " + period, sink.periods.get(period).get(delta));
+		// 20 before the reset, then 5, 10 and 10, over the 4 minutes since the last report
+		assertEquals(45.0 / 240, sink.periods.get(5).get(delta), 1e-12);
+	}
+
+	private static void assertPeriods(CapturingSink sink, String name, double... totals) {
+		assertEquals(totals.length, sink.periods.size());
+		for (int period = 0; period < totals.length; period++)
+			assertEquals(name + " in period " + period, totals[period], sink.periods.get(period).get(name), 1e-9);
+	}
+
+	private static MetricsRecord namenode(long timestamp, String host, AbstractMetric... metrics) {
+		return record(timestamp, "dfs", "namenode", new String[] { "ProcessName", "NameNode", "Hostname", host }, metrics);
+	}
+
+	private static CapturingSink newSink(String... settings) {
+		BaseConfiguration conf = new BaseConfiguration();
+		conf.setProperty("newrelic.proctype", "namenode");
+		conf.setProperty("newrelic.nrlicensekey", "0000000000000000000000000000000000000000");
+		conf.setProperty("newrelic.hostname", "test");
+		conf.setProperty("newrelic.stats", "false");
+		for (int i = 0; i + 1 < settings.length; i += 2)
+			conf.setProperty("newrelic." + settings[i], settings[i + 1]);
+		CapturingSink sink = new CapturingSink();
+		sink.init(new SubsetConfiguration(conf, "newrelic", "."));
+		return sink;
+	}
+
+	/**
+	 * A sink whose sender keeps what it is given, by period, instead of posting it.
+	 */
+	private static final class CapturingSink extends NewRelicSink {
+		final List<Map<String, Double>> periods = new ArrayList<Map<String, Double>>();
+
+		@Override
+		public void flush() {
+			periods.add(new HashMap<String, Double>());
+			super.flush();
+		}
+
+		@Override
+		NewRelicSender createSender(Context context, ComponentData component, SubsetConfiguration conf) {
+			return new NewRelicSender(context, component, conf) {
+				@Override
+				void start() {
+				}
+
+				@Override
+				boolean offer(NewRelicBatch batch) {
+					// Batches are offered during flush(), after its period was added
+					Map<String, Double> period = periods.get(periods.size() - 1);
+					for (int i = 0; i < batch.size(); i++)
+						period.put(batch.name(i), batch.total(i));
+					return true;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NewRelicSketchTest {
+
+	private static final double kAccuracy = 0.01;
+	private static final double[] kQuantiles = { 0, 0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 0.999, 1 };
+
+	@Test
+	public void quantilesAreWithinTheAccuracy() {
+		Random random = new Random(42);
+		double[] values = new double[100000];
+		NewRelicSketch sketch = new NewRelicSketch(kAccuracy, 4096);
+		for (int i = 0; i < values.length; i++) {
+			// Latency-like: log-normal over several orders of magnitude
+			values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+			sketch.add(values[i]);
+		}
+		assertEquals(values.length, sketch.count());
+		assertQuantiles(values, sketch);
+	}
+
+	@Test
+	public void mergedSketchesMatchOneSketch() {
+		Random random = new Random(7);
+		double[] values = new double[30000];
+		NewRelicSketch merged = new NewRelicSketch(kAccuracy, 4096);
+		NewRelicSketch[] parts = new NewRelicSketch[3];
+		for (int part = 0; part < parts.length; part++)
+			parts[part] = new NewRelicSketch(kAccuracy, 4096);
+		for (int i = 0; i < values.length; i++) {
+			// Each part covers its own range, so merging has to widen the buckets
+			values[i] = (1 + random.nextDouble()) * Math.pow(100, i % parts.length);
+			parts[i % parts.length].add(values[i]);
+		}
+		for (NewRelicSketch part : parts)
+			merged.merge(part);
+		assertEquals(values.length, merged.count());
+		assertQuantiles(values, merged);
+	}
+
+	@Test
+	public void countsZerosApart() {
+		NewRelicSketch sketch = new NewRelicSketch(kAccuracy, 16);
+		for (int i = 0; i < 60; i++)
+			sketch.add(0);
+		for (int i = 0; i < 40; i++)
+			sketch.add(50);
+		sketch.add(Double.NaN);
+		assertEquals(100, sketch.count());
+		assertEquals(0, sketch.quantile(0.5), 0);
+		assertEquals(50, sketch.quantile(0.99), 50 * kAccuracy);
+	}
+
+	@Test
+	public void boundedBucketsKeepHighQuantiles() {
+		NewRelicSketch sketch = new NewRelicSketch(kAccuracy, 64);
+		double[] values = new double[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1 + i;
+			sketch.add(values[i]);
+		}
+		assertTrue(sketch.buckets() <= 64);
+		Arrays.sort(values);
+		for (double quantile : new double[] { 0.95, 0.99, 1 }) {
+			double exact = values[(int) (quantile * (values.length - 1))];
+			assertEquals("p" + quantile, exact, sketch.quantile(quantile), exact * kAccuracy);
+		}
+	}
+
+	@Test
+	public void clearedSketchIsEmpty() {
+		NewRelicSketch sketch = new NewRelicSketch(kAccuracy, 16);
+		sketch.add(10);
+		sketch.clear();
+		assertEquals(0, sketch.count());
+		assertTrue(Double.isNaN(sketch.quantile(0.5)));
+		sketch.add(20);
+		assertEquals(20, sketch.quantile(0.5), 20 * kAccuracy);
+	}
+
+	// Each quantile within the relative accuracy of the value at the same rank
+	private static void assertQuantiles(double[] values, NewRelicSketch sketch) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		for (double quantile : kQuantiles) {
+			double exact = sorted[(int) (quantile * (sorted.length - 1))];
+			assertEquals("p" + quantile, exact, sketch.quantile(quantile), exact * kAccuracy);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NewRelicSpoolTest {
+
+	// A record takes 9 header bytes plus the payload, so a segment holds 3 payloads
+	private static final int kPayloadSize = 20;
+	private static final int kSegmentSize = 100;
+	private static final int kPerSegment = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysOldestFirst() throws IOException {
+		NewRelicSpool spool = newSpool(kSegmentSize * 4);
+		for (int i = 0; i < 7; i++)
+			assertTrue(spool.append(payload(i), kPayloadSize, i, false));
+		assertEquals(7, spool.getPendingPayloads());
+		assertReplays(spool, 0, 7);
+		assertTrue(spool.isEmpty());
+		assertEquals(0, spool.getDroppedPayloads());
+	}
+
+	@Test
+	public void evictsTheOldestSegmentWhenFull() throws IOException {
+		NewRelicSpool spool = newSpool(kSegmentSize * 2);
+		for (int i = 0; i < kPerSegment * 3; i++)
+			assertTrue(spool.append(payload(i), kPayloadSize, i, false));
+		assertEquals(kPerSegment, spool.getDroppedPayloads());
+		assertEquals(kPerSegment * 2, spool.getPendingPayloads());
+		assertTrue(spool.getDiskBytes() <= kSegmentSize * 2);
+		assertReplays(spool, kPerSegment, kPerSegment * 3);
+	}
+
+	@Test
+	public void doesNotRemoveAnotherPayloadAfterEviction() throws IOException {
+		NewRelicSpool spool = newSpool(kSegmentSize * 2);
+		for (int i = 0; i < kPerSegment; i++)
+			spool.append(payload(i), kPayloadSize, i, false);
+		NewRelicSpool.Entry entry = new NewRelicSpool.Entry();
+		assertTrue(spool.peek(entry));
+		assertEquals(0, entry.metrics);
+		// The segment being replayed is evicted before the payload is removed
+		for (int i = kPerSegment; i < kPerSegment * 3; i++)
+			spool.append(payload(i), kPayloadSize, i, false);
+		assertFalse(spool.remove(entry));
+		assertEquals(kPerSegment * 2, spool.getPendingPayloads());
+		assertReplays(spool, kPerSegment, kPerSegment * 3);
+	}
+
+	@Test
+	public void dropsPayloadsLargerThanASegment() throws IOException {
+		NewRelicSpool spool = newSpool(kSegmentSize * 2);
+		assertFalse(spool.append(new byte[kSegmentSize], kSegmentSize, 1, false));
+		assertEquals(1, spool.getDroppedPayloads());
+		assertTrue(spool.isEmpty());
+	}
+
+	@Test
+	public void resumesAfterReopening() throws IOException {
+		File directory = folder.newFolder("spool");
+		NewRelicSpool spool = new NewRelicSpool(directory, kSegmentSize, kSegmentSize * 4);
+		for (int i = 0; i < 5; i++)
+			spool.append(payload(i), kPayloadSize, i, false);
+		NewRelicSpool.Entry entry = new NewRelicSpool.Entry();
+		spool.peek(entry);
+		assertTrue(spool.remove(entry));
+
+		NewRelicSpool reopened = new NewRelicSpool(directory, kSegmentSize, kSegmentSize * 4);
+		assertEquals(4, reopened.getPendingPayloads());
+		assertReplays(reopened, 1, 5);
+	}
+
+	private NewRelicSpool newSpool(long maxBytes) throws IOException {
+		return new NewRelicSpool(folder.newFolder(), kSegmentSize, maxBytes);
+	}
+
+	// Payload i holds the byte i throughout and counts i metrics
+	private static byte[] payload(int i) {
+		byte[] payload = new byte[kPayloadSize];
+		Arrays.fill(payload, (byte) i);
+		return payload;
+	}
+
+	private static void assertReplays(NewRelicSpool spool, int from, int to) {
+		NewRelicSpool.Entry entry = new NewRelicSpool.Entry();
+		for (int i = from; i < to; i++) {
+			assertTrue("payload " + i, spool.peek(entry));
+			assertEquals(i, entry.metrics);
+			assertEquals(kPayloadSize, entry.length);
+			assertTrue(Arrays.equals(payload(i), Arrays.copyOf(entry.bytes, entry.length)));
+			assertTrue(spool.remove(entry));
+		}
+		assertFalse(spool.peek(entry));
+		assertTrue(spool.isEmpty());
+	}
+}
@@ -0,0 +1,76 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the New Relic collector on localhost, which keeps the payloads
+ * it accepts. While "down", it answers 503 and keeps nothing.
+ */
+final class TestCollector implements HttpHandler {
+
+	private final HttpServer server;
+	private final List<String> payloads = new ArrayList<String>();
+	private volatile boolean available = true;
+
+	TestCollector() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this);
+		server.start();
+	}
+
+	String uri() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/platform/v1/metrics";
+	}
+
+	void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	synchronized List<String> payloads() {
+		return new ArrayList<String>(payloads);
+	}
+
+	void stop() {
+		server.stop(0);
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		String payload = new String(readFully(in), "UTF-8");
+		int status = 503;
+		if (available) {
+			synchronized (this) {
+				payloads.add(payload);
+			}
+			status = 200;
+		}
+		byte[] response = ((status == 200) ? "{\"status\":\"ok\"}" : "{\"error\":\"unavailable\"}").getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, response.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response);
+		out.close();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+}
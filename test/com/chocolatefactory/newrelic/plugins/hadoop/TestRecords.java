@@ -0,0 +1,84 @@
+package com.chocolatefactory.newrelic.plugins.hadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.metrics2.AbstractMetric;
+import org.apache.hadoop.metrics2.MetricType;
+import org.apache.hadoop.metrics2.MetricsRecord;
+import org.apache.hadoop.metrics2.MetricsTag;
+import org.apache.hadoop.metrics2.MetricsVisitor;
+import org.apache.hadoop.metrics2.lib.Interns;
+
+/**
+ * Metrics2 records and metrics built by hand for the tests. The benchmarks
+ * build theirs from the same classes.
+ */
+final class TestRecords {
+
+	private TestRecords() {}
+
+	/**
+	 * @param tags tag names and values, alternating
+	 */
+	static MetricsRecord record(long timestamp, String context, String name, String[] tags, AbstractMetric... metrics) {
+		List<MetricsTag> recordTags = new ArrayList<MetricsTag>();
+		for (int i = 0; i + 1 < tags.length; i += 2)
+			recordTags.add(Interns.tag(tags[i], "", tags[i + 1]));
+		return new Record(timestamp, context, name, recordTags, Arrays.asList(metrics));
+	}
+
+	static AbstractMetric counter(String name, long value) {
+		return new Metric(name, MetricType.COUNTER, value);
+	}
+
+	static AbstractMetric gauge(String name, double value) {
+		return new Metric(name, MetricType.GAUGE, value);
+	}
+
+	static final class Record implements MetricsRecord {
+		private final long timestamp;
+		private final String context, name;
+		private final List<MetricsTag> tags;
+		private final List<AbstractMetric> metrics;
+
+		Record(long timestamp, String context, String name, List<MetricsTag> tags, List<AbstractMetric> metrics) {
+			this.timestamp = timestamp;
+			this.context = context;
+			this.name = name;
+			this.tags = tags;
+			this.metrics = metrics;
+		}
+
+		@Override public long timestamp() { return timestamp; }
+		@Override public String name() { return name; }
+		@Override public String description() { return name; }
+		@Override public String context() { return context; }
+		@Override public Collection<MetricsTag> tags() { return tags; }
+		@Override public Iterable<AbstractMetric> metrics() { return metrics; }
+	}
+
+	static final class Metric extends AbstractMetric {
+		private final MetricType type;
+		private final Number value;
+
+		Metric(String name, MetricType type, Number value) {
+			super(Interns.info(name, ""));
+			this.type = type;
+			this.value = value;
+		}
+
+		@Override public Number value() { return value; }
+		@Override public MetricType type() { return type; }
+
+		@Override
+		public void visit(MetricsVisitor visitor) {
+			if (type == MetricType.COUNTER)
+				visitor.counter(this, value.longValue());
+			else
+				visitor.gauge(this, value.doubleValue());
+		}
+	}
+}